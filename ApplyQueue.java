@@ -0,0 +1,235 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Spreads mass refreshes over several ticks. Effective permissions are resolved against
+ * the published snapshot in parallel on a bounded fork-join pool; the results are applied
+ * to attachments by a main-thread task that stops each tick once its time budget is
+ * used up. Players with permissions.priority are applied first.
+ *
+ * <p>A result is only applied if the groups, the player's own record and their world are
+ * still the ones it was computed for, otherwise the player is recalculated on the spot.
+ * Changes to other users do not matter, so a mass refresh survives players joining.
+ */
+final class ApplyQueue implements Runnable {
+
+    private static final class Result implements Comparable<Result> {
+        private final UUID player;
+        private final String world;
+        private final long groupsVersion;
+        private final PermissionsSnapshot.UserRecord user;
+        private final long sequence;
+        private final boolean priority;
+        // null if resolving failed
+        private Map<String, Boolean> values;
+
+        private Result(UUID player, String world, long groupsVersion, PermissionsSnapshot.UserRecord user, long sequence, boolean priority) {
+            this.player = player;
+            this.world = world;
+            this.groupsVersion = groupsVersion;
+            this.user = user;
+            this.sequence = sequence;
+            this.priority = priority;
+        }
+
+        public int compareTo(Result o) {
+            if (priority != o.priority) {
+                return priority ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Resolves a range of jobs, splitting it while it is larger than THRESHOLD.
+     */
+    private static final class ResolveTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 32;
+
+        private final PermissionsSnapshot snapshot;
+        private final List<Result> jobs;
+        private final int from, to;
+        private final Queue<Result> out;
+
+        private ResolveTask(PermissionsSnapshot snapshot, List<Result> jobs, int from, int to, Queue<Result> out) {
+            this.snapshot = snapshot;
+            this.jobs = jobs;
+            this.from = from;
+            this.to = to;
+            this.out = out;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; ++i) {
+                    Result result = jobs.get(i);
+                    try {
+                        result.values = snapshot.resolve(result.player, result.world);
+                    } catch (RuntimeException ex) {
+                        // the main thread recalculates them and reports whatever is wrong
+                        result.values = null;
+                    }
+                    out.add(result);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ResolveTask(snapshot, jobs, from, mid, out), new ResolveTask(snapshot, jobs, mid, to, out));
+            }
+        }
+    }
+
+    private final PermissionsPlugin plugin;
+    private final ConcurrentLinkedQueue<Result> computed = new ConcurrentLinkedQueue<Result>();
+    private final PriorityQueue<Result> ready = new PriorityQueue<Result>();
+    // latest sequence scheduled per player, anything older is superseded
+    private final HashMap<UUID, Long> latest = new HashMap<UUID, Long>();
+
+    private BukkitTask task;
+    private ForkJoinPool pool;
+    private long sequence = 0;
+    private long drainStart = -1;
+
+    private volatile int depth = 0;
+    private volatile int lastDrainMillis = 0;
+
+    ApplyQueue(PermissionsPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    void start() {
+        if (task == null) {
+            task = plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1, 1);
+        }
+        if (pool == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            int threads = plugin.getConfig().getInt("resolve-threads", 0);
+            pool = new ForkJoinPool(threads <= 0 ? cores : Math.min(threads, cores));
+            plugin.debug("Resolving mass refreshes on " + pool.getParallelism() + " threads");
+        }
+    }
+
+    void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+        computed.clear();
+        ready.clear();
+        latest.clear();
+        depth = 0;
+        drainStart = -1;
+    }
+
+    /**
+     * Queues registered players for recalculation. Must be called from the main thread.
+     */
+    void schedule(Collection<Player> players) {
+        if (players.isEmpty()) {
+            return;
+        }
+        PermissionsSnapshot snapshot = plugin.getSnapshot();
+        ArrayList<Result> jobs = new ArrayList<Result>(players.size());
+        for (Player player : players) {
+            long seq = ++sequence;
+            latest.put(player.getUniqueId(), seq);
+            jobs.add(new Result(player.getUniqueId(), player.getWorld().getName(), snapshot.getGroupsVersion(),
+                    snapshot.getUser(player.getUniqueId()), seq, player.hasPermission("permissions.priority")));
+        }
+        depth = latest.size();
+        if (drainStart < 0) {
+            drainStart = System.nanoTime();
+        }
+
+        pool.execute(new ResolveTask(snapshot, jobs, 0, jobs.size(), computed));
+    }
+
+    /**
+     * Recalculates the players right away on the main thread, without waiting for the
+     * pool. Used when the tick budget is turned off.
+     */
+    void applyNow(Collection<Player> players) {
+        for (Player player : players) {
+            // anything queued for them before is superseded
+            latest.remove(player.getUniqueId());
+        }
+        depth = latest.size();
+
+        for (Player player : players) {
+            plugin.calculateAttachment(player);
+        }
+    }
+
+    public void run() {
+        Result result;
+        while ((result = computed.poll()) != null) {
+            ready.add(result);
+        }
+        if (ready.isEmpty()) {
+            return;
+        }
+
+        long budget = plugin.getConfig().getLong("apply-budget", 5) * 1000000L;
+        long start = System.nanoTime();
+        int applied = 0;
+        while ((result = ready.poll()) != null) {
+            Long seq = latest.get(result.player);
+            if (seq == null || seq != result.sequence) {
+                continue;
+            }
+            latest.remove(result.player);
+
+            Player player = plugin.getServer().getPlayer(result.player);
+            if (player != null) {
+                PermissionsSnapshot current = plugin.getSnapshot();
+                if (result.values != null && result.groupsVersion == current.getGroupsVersion()
+                        && PermissionsPlugin.sameUser(result.user, current.getUser(result.player))
+                        && result.world.equals(player.getWorld().getName())) {
+                    plugin.applyResolved(player, result.values);
+                } else {
+                    plugin.calculateAttachment(player);
+                }
+                ++applied;
+            }
+            if (System.nanoTime() - start >= budget) {
+                break;
+            }
+        }
+        depth = latest.size();
+
+        if (latest.isEmpty()) {
+            lastDrainMillis = (int) ((System.nanoTime() - drainStart) / 1000000L);
+            drainStart = -1;
+            plugin.debug("Apply queue drained in " + lastDrainMillis + "ms");
+        } else {
+            plugin.debug("Applied " + applied + " players this tick, " + latest.size() + " left");
+        }
+    }
+
+    /**
+     * @return players waiting to have their permissions applied
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return milliseconds from the first schedule until the queue was last empty again
+     */
+    int getLastDrainMillis() {
+        return lastDrainMillis;
+    }
+
+}
\ No newline at end of file
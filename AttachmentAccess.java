@@ -0,0 +1,135 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.permissions.PermissionAttachment;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Direct access to the private permission map of a {@link PermissionAttachment}. The
+ * field is resolved once into method handles, which the JIT can inline unlike a
+ * {@code Field.get} call.
+ *
+ * <p>Maps shared between players are installed behind a copy-on-write view, since other
+ * plugins can reach the attachment through {@code getEffectivePermissions} and call
+ * {@code setPermission} on it. The first such change gives that attachment its own copy.
+ */
+final class AttachmentAccess {
+
+    private static final MethodHandle GETTER;
+    private static final MethodHandle SETTER;
+
+    static {
+        try {
+            Field field = PermissionAttachment.class.getDeclaredField("permissions");
+            field.setAccessible(true);
+            GETTER = MethodHandles.lookup().unreflectGetter(field);
+            SETTER = MethodHandles.lookup().unreflectSetter(field);
+        } catch (Exception ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private AttachmentAccess() {
+    }
+
+    /**
+     * @return the map of the attachment, or the shared map it was given if it is
+     * unchanged since
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Boolean> getMap(PermissionAttachment attachment) {
+        Object map;
+        try {
+            map = GETTER.invoke(attachment);
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+        if (map instanceof CopyOnWriteMap) {
+            return ((CopyOnWriteMap) map).current();
+        }
+        return (Map<String, Boolean>) map;
+    }
+
+    /**
+     * @param values a map shared with other attachments, which is never modified
+     */
+    static void setMap(PermissionAttachment attachment, Map<String, Boolean> values) {
+        try {
+            SETTER.invoke(attachment, new CopyOnWriteMap(values));
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Reads through to a shared map until something changes it, then works on a private
+     * copy that keeps the order of the shared one.
+     */
+    private static final class CopyOnWriteMap extends AbstractMap<String, Boolean> {
+        private final Map<String, Boolean> shared;
+        private LinkedHashMap<String, Boolean> own;
+
+        CopyOnWriteMap(Map<String, Boolean> shared) {
+            this.shared = shared;
+        }
+
+        Map<String, Boolean> current() {
+            return own != null ? own : shared;
+        }
+
+        private Map<String, Boolean> copy() {
+            if (own == null) {
+                own = new LinkedHashMap<String, Boolean>(shared);
+            }
+            return own;
+        }
+
+        @Override
+        public int size() {
+            return current().size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return current().containsKey(key);
+        }
+
+        @Override
+        public Boolean get(Object key) {
+            return current().get(key);
+        }
+
+        @Override
+        public Boolean put(String key, Boolean value) {
+            return copy().put(key, value);
+        }
+
+        @Override
+        public Boolean remove(Object key) {
+            return current().containsKey(key) ? copy().remove(key) : null;
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ? extends Boolean> map) {
+            copy().putAll(map);
+        }
+
+        @Override
+        public void clear() {
+            copy().clear();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Boolean>> entrySet() {
+            return own != null ? own.entrySet() : Collections.unmodifiableMap(shared).entrySet();
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,368 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal for config.yml, used when journal is enabled. Instead of rewriting
+ * the whole file, every change made by a command appends the changed group or user to
+ * journal.dat. config.yml becomes a snapshot that the journal is folded into from time
+ * to time, and on startup or reload the journal is replayed on top of it.
+ *
+ * <p>Records carry a sequence number and a checksum, so a record torn by a crash is
+ * detected and dropped on replay. Appends are written by a single thread, which forces
+ * the file to disk once per batch of records rather than once per record. A compaction
+ * is queued on the same thread behind the records it contains, and only empties the
+ * journal once config.yml was written. Replaying a record twice has no effect, so a
+ * crash in between is harmless.
+ */
+final class ConfigJournal {
+
+    private static final byte DELETE = 0, PUT = 1;
+    private static final int HEADER = 16;
+    private static final long COMPACT_INTERVAL = 20 * 60 * 5;
+
+    private final PermissionsPlugin plugin;
+    private final File file;
+    private final ConfigSaver saver;
+    private FileChannel channel;
+    private final ExecutorService writer;
+    private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+
+    private long sequence = 0;
+    private int appended = 0;
+    private BukkitTask timer;
+
+    ConfigJournal(PermissionsPlugin plugin, File file, ConfigSaver saver) throws IOException {
+        this.plugin = plugin;
+        this.file = file;
+        this.saver = saver;
+        this.channel = open(file);
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bPermissions journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    void start() {
+        timer = plugin.getServer().getScheduler().runTaskTimer(plugin, new Runnable() {
+            public void run() {
+                if (appended > 0) {
+                    compact();
+                }
+            }
+        }, COMPACT_INTERVAL, COMPACT_INTERVAL);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Waits until every queued record and compaction is written, so that config.yml can
+     * be read back. Must be called from the main thread.
+     */
+    void await() {
+        try {
+            writer.submit(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            }).get();
+        } catch (ExecutionException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to write " + file, ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Appends the new state of a group or user. Must be called from the main thread.
+     *
+     * @param path the path of the section in config.yml
+     * @param section its new contents, or null if it was removed
+     */
+    void append(String path, ConfigurationSection section) {
+        String data = "";
+        if (section != null) {
+            YamlConfiguration copy = new YamlConfiguration();
+            copy.options().pathSeparator('/');
+            PermissionsPlugin.copySection(section, copy);
+            data = copy.saveToString();
+        }
+        queue.add(encode(++sequence, section == null ? DELETE : PUT, path, data));
+        writer.execute(new Runnable() {
+            public void run() {
+                drain();
+            }
+        });
+
+        if (++appended >= plugin.getConfig().getInt("journal-compact-after", 1000)) {
+            compact();
+        }
+    }
+
+    private void drain() {
+        drain(Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes queued records up to a sequence number and forces them to disk together.
+     * Only runs on the writer thread; records queued meanwhile are picked up by the same
+     * run.
+     */
+    private void drain(long upTo) {
+        ArrayList<byte[]> batch = new ArrayList<byte[]>();
+        byte[] record;
+        int size = 0;
+        while ((record = queue.peek()) != null && ByteBuffer.wrap(record).getLong(4) <= upTo) {
+            batch.add(queue.poll());
+            size += record.length;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] bytes : batch) {
+            buffer.put(bytes);
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to append " + batch.size() + " changes to " + file, ex);
+        }
+    }
+
+    /**
+     * Folds the journal into config.yml. Must be called from the main thread; the write
+     * itself happens on the writer thread.
+     */
+    void compact() {
+        final Callable<Boolean> write = saver.prepare();
+        final long upTo = sequence;
+        appended = 0;
+        writer.execute(new Runnable() {
+            public void run() {
+                // later records are not in the snapshot, so they go into the emptied journal
+                drain(upTo);
+                try {
+                    if (write.call()) {
+                        discard(upTo);
+                    }
+                } catch (Exception ex) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to compact " + file, ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the records up to a sequence number once they are in config.yml. Records
+     * after it may already be on disk, written by a drain that ran before the compaction,
+     * and are kept by swapping in a new file that holds only them. Only runs on the
+     * writer thread.
+     */
+    private void discard(long upTo) throws IOException {
+        long size = channel.size();
+        long keep = size;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        for (long position = 0; position + HEADER <= size; ) {
+            header.clear();
+            channel.read(header, position);
+            if (header.getLong(4) > upTo) {
+                keep = position;
+                break;
+            }
+            position += HEADER + header.getInt(0);
+        }
+
+        if (keep >= size) {
+            channel.truncate(0);
+            channel.force(false);
+            return;
+        }
+
+        ByteBuffer rest = ByteBuffer.allocate((int) (size - keep));
+        while (rest.hasRemaining() && channel.read(rest, keep + rest.position()) >= 0) {
+        }
+        rest.flip();
+        File temp = new File(file.getPath() + ".tmp");
+        FileChannel out = open(temp);
+        try {
+            out.truncate(0);
+            while (rest.hasRemaining()) {
+                out.write(rest);
+            }
+            out.force(false);
+        } finally {
+            out.close();
+        }
+        channel.close();
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // if the move failed, the old records stay and replaying them again is harmless
+            channel = open(file);
+            channel.position(channel.size());
+        }
+    }
+
+    /**
+     * Applies every complete record of the journal to a freshly loaded configuration.
+     * A torn record at the end is cut off. Must be called from the main thread.
+     *
+     * @return the number of records applied
+     */
+    int replay(final ConfigurationSection root) {
+        try {
+            return writer.submit(new Callable<Integer>() {
+                public Integer call() throws IOException {
+                    drain();
+                    return read(root);
+                }
+            }).get();
+        } catch (ExecutionException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to replay " + file, ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    private int read(ConfigurationSection root) throws IOException {
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        channel.position(0);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+        buffer.flip();
+
+        int count = 0;
+        long good = 0;
+        while (buffer.remaining() >= HEADER) {
+            int length = buffer.getInt();
+            long seq = buffer.getLong();
+            int crc = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (checksum(seq, payload) != crc) {
+                break;
+            }
+
+            apply(root, seq, payload);
+            sequence = Math.max(sequence, seq);
+            good = buffer.position();
+            ++count;
+        }
+
+        if (good < size) {
+            plugin.getLogger().warning("Dropped " + (size - good) + " bytes of an incomplete change at the end of " + file);
+            channel.truncate(good);
+        }
+        channel.position(good);
+        return count;
+    }
+
+    private void apply(ConfigurationSection root, long seq, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        String path = in.readUTF();
+        byte[] data = new byte[in.available()];
+        in.readFully(data);
+
+        root.set(path, null);
+        if (type == PUT) {
+            YamlConfiguration section = new YamlConfiguration();
+            section.options().pathSeparator('/');
+            try {
+                section.loadFromString(new String(data, "UTF-8"));
+            } catch (InvalidConfigurationException ex) {
+                plugin.getLogger().log(Level.WARNING, "Skipping unreadable change " + seq + " to " + path + " in " + file, ex);
+                return;
+            }
+            PermissionsPlugin.copySection(section, root.createSection(path));
+        }
+    }
+
+    private static byte[] encode(long seq, byte type, String path, String data) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeUTF(path);
+            out.write(data.getBytes("UTF-8"));
+            byte[] payload = bytes.toByteArray();
+
+            ByteBuffer record = ByteBuffer.allocate(HEADER + payload.length);
+            record.putInt(payload.length);
+            record.putLong(seq);
+            record.putInt(checksum(seq, payload));
+            record.put(payload);
+            return record.array();
+        } catch (IOException ex) {
+            // in-memory streams do not fail
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static int checksum(long seq, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(seq).array());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Folds the journal into config.yml one last time and waits for it to be written.
+     */
+    void close() {
+        if (timer != null) {
+            timer.cancel();
+        }
+        compact();
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().severe("Timed out compacting " + file + ", it will be replayed on the next start");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+}
\ No newline at end of file
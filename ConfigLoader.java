@@ -0,0 +1,574 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.Mark;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.*;
+import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+import org.yaml.snakeyaml.nodes.NodeId;
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads YAML into a configuration straight from the SnakeYAML event stream.
+ * {@link YamlConfiguration#loadFromString} first reads the whole file into a string, then
+ * composes a node graph of it and constructs maps from that before converting those into
+ * sections. Here the file is read through a buffer and every event goes right into the
+ * section it belongs to, which saves the string, the node graph and the maps. The
+ * configuration tree itself is still built in full, because the rest of the plugin reads
+ * and edits it, so the peak during a reload is the old and the new tree side by side.
+ *
+ * <p>The result is the same as loading through {@link YamlConfiguration}: scalars get the
+ * same types, keys are turned into strings, maps inside lists stay maps, and syntax
+ * errors come out as an {@link InvalidConfigurationException} with the same line and
+ * column marks.
+ *
+ * <p>Only parts of the SnakeYAML API that servers of every supported version ship are
+ * used, so scalars are constructed here the same way SnakeYAML's safe constructor does.
+ * Newer versions limit the size of the input by default, which is lifted through
+ * reflection where it exists.
+ *
+ * <p>Aliases are shared rather than copied wherever the result allows it: lists and maps
+ * inside lists get the anchored object itself, as they would from SnakeYAML. Sections are
+ * edited in place under their own path, so an alias inside one is still copied. As with
+ * SnakeYAML's {@code LoaderOptions#setMaxAliasesForCollections}, only so many aliases of collections
+ * are accepted, and the entries copied for them are capped too, so a nested alias bomb
+ * fails to load instead of filling the heap.
+ */
+final class ConfigLoader {
+
+    private static final String COMMENT_PREFIX = "# ";
+    private static final String MERGE_KEY = "<<";
+    // SnakeYAML's default for aliases of collections
+    private static final int MAX_ALIASES = 50;
+    private static final int MAX_COPIED_ENTRIES = 1000000;
+
+    private static final Pattern YMD = Pattern.compile("^([0-9][0-9][0-9][0-9])-([0-9][0-9]?)-([0-9][0-9]?)$");
+    private static final Pattern TIMESTAMP = Pattern.compile("^([0-9][0-9][0-9][0-9])-([0-9][0-9]?)-([0-9][0-9]?)"
+            + "(?:(?:[Tt]|[ \t]+)([0-9][0-9]?):([0-9][0-9]):([0-9][0-9])(?:\\.([0-9]*))?"
+            + "(?:[ \t]*(?:Z|([-+][0-9][0-9]?)(?::([0-9][0-9])?)?))?)?$");
+
+    // Yaml(LoaderOptions) with the input size unlimited, or null on versions without a limit
+    private static final Constructor<Yaml> UNLIMITED_YAML;
+    private static final Object UNLIMITED_OPTIONS;
+
+    static {
+        Constructor<Yaml> constructor = null;
+        Object options = null;
+        try {
+            Class<?> optionsClass = Class.forName("org.yaml.snakeyaml.LoaderOptions");
+            options = optionsClass.newInstance();
+            optionsClass.getMethod("setCodePointLimit", int.class).invoke(options, Integer.MAX_VALUE);
+            constructor = Yaml.class.getConstructor(optionsClass);
+        } catch (Exception ex) {
+            constructor = null;
+        }
+        UNLIMITED_YAML = constructor;
+        UNLIMITED_OPTIONS = options;
+    }
+
+    /**
+     * A mapping or sequence that is still being read. Exactly one of section, map and
+     * list is set.
+     */
+    private static final class Frame {
+        final ConfigurationSection section;
+        final Map<Object, Object> map;
+        final List<Object> list;
+        Object key;
+        boolean hasKey;
+        // added to the parent only once complete, because it is merged into it
+        boolean deferred;
+
+        Frame(ConfigurationSection section, Map<Object, Object> map, List<Object> list) {
+            this.section = section;
+            this.map = map;
+            this.list = list;
+        }
+    }
+
+    private final Resolver resolver = new Resolver();
+    private final HashMap<String, Object> anchors = new HashMap<String, Object>();
+    private final IdentityHashMap<ConfigurationSection, Map<Object, Object>> plain = new IdentityHashMap<ConfigurationSection, Map<Object, Object>>();
+    private final ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+    private final YamlConfiguration root;
+    private int documents = 0;
+    private int aliases = 0;
+    private int copied = 0;
+    private Mark firstDocument;
+
+    private ConfigLoader(YamlConfiguration root) {
+        this.root = root;
+    }
+
+    private static Yaml createYaml() {
+        if (UNLIMITED_YAML != null) {
+            try {
+                // large files are the reason this class exists
+                return UNLIMITED_YAML.newInstance(UNLIMITED_OPTIONS);
+            } catch (Exception ex) {
+                // fall through to the default limits
+            }
+        }
+        return new Yaml();
+    }
+
+    static void load(File file, YamlConfiguration into) throws IOException, InvalidConfigurationException {
+        String header = readHeader(open(file), endsWithNewline(file));
+        if (header.length() > 0) {
+            into.options().header(header);
+        }
+        Reader reader = open(file);
+        try {
+            new ConfigLoader(into).read(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static void load(String data, YamlConfiguration into) throws InvalidConfigurationException {
+        try {
+            String header = readHeader(new BufferedReader(new StringReader(data)), data.endsWith("\n"));
+            if (header.length() > 0) {
+                into.options().header(header);
+            }
+            new ConfigLoader(into).read(new StringReader(data));
+        } catch (IOException ex) {
+            // strings cannot fail to be read
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static BufferedReader open(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() == 0) {
+                return false;
+            }
+            in.seek(in.length() - 1);
+            return in.read() == '\n';
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the leading comment the same way {@link YamlConfiguration} does, so that it
+     * is written back on save.
+     *
+     * @param newline whether the input ends with a line break, which YamlConfiguration
+     *                counts as an empty last line
+     */
+    private static String readHeader(BufferedReader reader, boolean newline) throws IOException {
+        StringBuilder result = new StringBuilder();
+        try {
+            boolean found = false;
+            String line;
+            for (int i = 0; ; ++i) {
+                line = reader.readLine();
+                if (line == null) {
+                    if (found && newline) {
+                        result.append("\n");
+                    }
+                    break;
+                }
+                if (line.startsWith(COMMENT_PREFIX)) {
+                    if (i > 0) {
+                        result.append("\n");
+                    }
+                    result.append(line.substring(COMMENT_PREFIX.length()));
+                    found = true;
+                } else if (found && line.length() == 0) {
+                    result.append("\n");
+                } else if (found) {
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result.toString();
+    }
+
+    private void read(Reader reader) throws InvalidConfigurationException {
+        try {
+            for (Event event : createYaml().parse(reader)) {
+                if (event instanceof DocumentStartEvent) {
+                    if (++documents > 1) {
+                        throw error("expected a single document in the stream\n" + firstDocument + "\nbut found another document", event.getStartMark());
+                    }
+                    firstDocument = event.getStartMark();
+                } else if (event instanceof MappingStartEvent) {
+                    startMapping((MappingStartEvent) event);
+                } else if (event instanceof SequenceStartEvent) {
+                    List<Object> list = new ArrayList<Object>();
+                    remember(((SequenceStartEvent) event).getAnchor(), list);
+                    Frame frame = new Frame(null, null, list);
+                    frame.deferred = isMerging();
+                    if (!frame.deferred) {
+                        add(list, event.getStartMark());
+                    }
+                    stack.push(frame);
+                } else if (event instanceof MappingEndEvent || event instanceof SequenceEndEvent) {
+                    Frame frame = stack.pop();
+                    if (frame.deferred) {
+                        add(frame.list != null ? frame.list : frame.map, event.getStartMark());
+                    }
+                } else if (event instanceof ScalarEvent) {
+                    ScalarEvent scalar = (ScalarEvent) event;
+                    Object value = construct(scalar);
+                    remember(scalar.getAnchor(), value);
+                    add(value, event.getStartMark());
+                } else if (event instanceof AliasEvent) {
+                    String anchor = ((AliasEvent) event).getAnchor();
+                    if (!anchors.containsKey(anchor)) {
+                        throw error("found undefined alias " + anchor, event.getStartMark());
+                    }
+                    Object value = anchors.get(anchor);
+                    if (value instanceof Map || value instanceof List || value instanceof ConfigurationSection) {
+                        if (isOpen(value)) {
+                            throw error("found recursive anchor " + anchor, event.getStartMark());
+                        }
+                        if (++aliases > MAX_ALIASES) {
+                            throw error("Number of aliases for non-scalar nodes exceeds the specified max=" + MAX_ALIASES, event.getStartMark());
+                        }
+                    }
+                    add(value, event.getStartMark());
+                }
+            }
+        } catch (YAMLException ex) {
+            throw new InvalidConfigurationException(ex);
+        }
+    }
+
+    private void startMapping(MappingStartEvent event) throws InvalidConfigurationException {
+        Frame parent = stack.peek();
+        Frame frame;
+        if (parent == null) {
+            frame = new Frame(root, null, null);
+        } else if (isMerging()) {
+            frame = new Frame(null, new LinkedHashMap<Object, Object>(), null);
+            frame.deferred = true;
+        } else if (parent.section != null && parent.hasKey) {
+            frame = new Frame(parent.section.createSection(String.valueOf(parent.key)), null, null);
+            parent.hasKey = false;
+        } else {
+            Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+            add(map, event.getStartMark());
+            frame = new Frame(null, map, null);
+        }
+        remember(event.getAnchor(), frame.section != null ? frame.section : frame.map);
+        stack.push(frame);
+    }
+
+    /**
+     * @return whether the value that starts now belongs to a merge key
+     */
+    private boolean isMerging() {
+        Frame frame = stack.peek();
+        return frame != null && frame.list == null && frame.hasKey && MERGE_KEY.equals(frame.key);
+    }
+
+    private void remember(String anchor, Object value) {
+        if (anchor != null) {
+            anchors.put(anchor, value);
+        }
+    }
+
+    /**
+     * @return whether the value is a mapping or sequence that is still being read
+     */
+    private boolean isOpen(Object value) {
+        for (Frame frame : stack) {
+            if (frame.section == value || frame.map == value || frame.list == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a finished value to whatever is being read: a sequence, or a mapping where it
+     * is either the key or the value of the current entry.
+     */
+    private void add(Object value, Mark mark) throws InvalidConfigurationException {
+        Frame frame = stack.peek();
+        if (frame == null) {
+            // an empty document is fine, anything else has to be a mapping
+            if (value != null) {
+                throw new InvalidConfigurationException("Top level is not a Map.");
+            }
+            return;
+        }
+
+        if (frame.list != null) {
+            frame.list.add(toPlain(value));
+        } else if (!frame.hasKey) {
+            if (value instanceof Map || value instanceof List || value instanceof ConfigurationSection) {
+                throw error("found a complex mapping key, which is not supported", mark);
+            }
+            frame.key = value;
+            frame.hasKey = true;
+        } else {
+            frame.hasKey = false;
+            if (MERGE_KEY.equals(frame.key)) {
+                merge(frame, value, mark);
+            } else if (frame.section != null) {
+                put(frame.section, String.valueOf(frame.key), value);
+            } else {
+                frame.map.put(frame.key, toPlain(value));
+            }
+        }
+    }
+
+    private void put(ConfigurationSection section, String key, Object value) throws InvalidConfigurationException {
+        if (value instanceof ConfigurationSection) {
+            ConfigurationSection from = (ConfigurationSection) value;
+            ConfigurationSection to = section.createSection(key);
+            for (String child : from.getKeys(false)) {
+                copy(to, child, from.get(child));
+            }
+        } else if (value instanceof Map) {
+            ConfigurationSection to = section.createSection(key);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy(to, String.valueOf(entry.getKey()), entry.getValue());
+            }
+        } else {
+            section.set(key, value);
+        }
+    }
+
+    /**
+     * Puts an entry of an aliased or merged mapping into a section of its own.
+     */
+    private void copy(ConfigurationSection section, String key, Object value) throws InvalidConfigurationException {
+        if (++copied > MAX_COPIED_ENTRIES) {
+            throw new InvalidConfigurationException("Aliases expand to more than " + MAX_COPIED_ENTRIES + " entries");
+        }
+        put(section, key, value);
+    }
+
+    /**
+     * Applies a merge key: entries of the merged mappings that the mapping does not set
+     * itself are added to it.
+     */
+    private void merge(Frame frame, Object value, Mark mark) throws InvalidConfigurationException {
+        if (value instanceof List) {
+            // earlier mappings in the list win over later ones
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); ++i) {
+                merge(frame, list.get(i), mark);
+            }
+            return;
+        }
+
+        Map<?, ?> entries;
+        if (value instanceof ConfigurationSection) {
+            entries = ((ConfigurationSection) value).getValues(false);
+        } else if (value instanceof Map) {
+            entries = (Map<?, ?>) value;
+        } else {
+            throw error("expected a mapping or list of mappings for merging", mark);
+        }
+        for (Map.Entry<?, ?> entry : entries.entrySet()) {
+            if (frame.section != null) {
+                String key = String.valueOf(entry.getKey());
+                if (!frame.section.contains(key)) {
+                    put(frame.section, key, entry.getValue());
+                }
+            } else if (!frame.map.containsKey(entry.getKey())) {
+                frame.map.put(entry.getKey(), toPlain(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * @return the value as it would appear inside a list, where sections are plain maps;
+     *         every alias of a section gets the same map
+     */
+    private Object toPlain(Object value) {
+        if (!(value instanceof ConfigurationSection)) {
+            return value;
+        }
+        ConfigurationSection section = (ConfigurationSection) value;
+        Map<Object, Object> map = plain.get(section);
+        if (map == null) {
+            map = new LinkedHashMap<Object, Object>();
+            for (String key : section.getKeys(false)) {
+                map.put(key, toPlain(section.get(key)));
+            }
+            plain.put(section, map);
+        }
+        return map;
+    }
+
+    /**
+     * Gives a scalar the type SnakeYAML's safe constructor would give it.
+     */
+    private Object construct(ScalarEvent event) throws InvalidConfigurationException {
+        String value = event.getValue();
+        Tag tag;
+        if (event.getTag() == null || event.getTag().equals("!")) {
+            tag = resolver.resolve(NodeId.scalar, value, event.getImplicit().canOmitTagInPlainScalar());
+        } else {
+            tag = new Tag(event.getTag());
+        }
+
+        if (tag.equals(Tag.STR) || tag.equals(Tag.MERGE)) {
+            return value;
+        } else if (tag.equals(Tag.NULL)) {
+            return null;
+        } else if (tag.equals(Tag.BOOL)) {
+            String lower = value.toLowerCase();
+            if (lower.equals("yes") || lower.equals("true") || lower.equals("on")) {
+                return Boolean.TRUE;
+            } else if (lower.equals("no") || lower.equals("false") || lower.equals("off")) {
+                return Boolean.FALSE;
+            }
+            return null;
+        } else if (tag.equals(Tag.INT)) {
+            return constructInt(value);
+        } else if (tag.equals(Tag.FLOAT)) {
+            return constructFloat(value);
+        } else if (tag.equals(Tag.TIMESTAMP)) {
+            Date date = constructTimestamp(value);
+            if (date == null) {
+                throw error("Unexpected timestamp: " + value, event.getStartMark());
+            }
+            return date;
+        } else if (tag.equals(Tag.BINARY)) {
+            return Base64Coder.decode(value.replaceAll("\\s", "").toCharArray());
+        }
+        throw error("could not determine a constructor for the tag " + tag, event.getStartMark());
+    }
+
+    private static Object constructInt(String text) {
+        String value = text.replace("_", "");
+        int sign = 1;
+        if (value.startsWith("-")) {
+            sign = -1;
+            value = value.substring(1);
+        } else if (value.startsWith("+")) {
+            value = value.substring(1);
+        }
+
+        if (value.equals("0")) {
+            return 0;
+        } else if (value.startsWith("0b")) {
+            return createNumber(sign, value.substring(2), 2);
+        } else if (value.startsWith("0x")) {
+            return createNumber(sign, value.substring(2), 16);
+        } else if (value.startsWith("0")) {
+            return createNumber(sign, value.substring(1), 8);
+        } else if (value.indexOf(':') != -1) {
+            String[] digits = value.split(":");
+            int base = 1, result = 0;
+            for (int i = digits.length - 1; i >= 0; --i) {
+                result += Long.parseLong(digits[i]) * base;
+                base *= 60;
+            }
+            return createNumber(sign, String.valueOf(result), 10);
+        }
+        return createNumber(sign, value, 10);
+    }
+
+    private static Number createNumber(int sign, String number, int radix) {
+        if (sign < 0) {
+            number = "-" + number;
+        }
+        try {
+            return Integer.valueOf(number, radix);
+        } catch (NumberFormatException ex) {
+            try {
+                return Long.valueOf(number, radix);
+            } catch (NumberFormatException ex2) {
+                return new BigInteger(number, radix);
+            }
+        }
+    }
+
+    private static Double constructFloat(String text) {
+        String value = text.replace("_", "").toLowerCase();
+        int sign = 1;
+        if (value.startsWith("-")) {
+            sign = -1;
+            value = value.substring(1);
+        } else if (value.startsWith("+")) {
+            value = value.substring(1);
+        }
+
+        if (value.equals(".inf")) {
+            return sign < 0 ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        } else if (value.equals(".nan")) {
+            return Double.NaN;
+        } else if (value.indexOf(':') != -1) {
+            String[] digits = value.split(":");
+            int base = 1;
+            double result = 0;
+            for (int i = digits.length - 1; i >= 0; --i) {
+                result += Double.parseDouble(digits[i]) * base;
+                base *= 60;
+            }
+            return sign * result;
+        }
+        return sign * Double.parseDouble(value);
+    }
+
+    /**
+     * @return the date, in UTC unless the value has a zone, or null if it is no timestamp
+     */
+    private static Date constructTimestamp(String value) {
+        Matcher match = YMD.matcher(value);
+        if (match.matches()) {
+            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            calendar.clear();
+            calendar.set(Integer.parseInt(match.group(1)), Integer.parseInt(match.group(2)) - 1, Integer.parseInt(match.group(3)));
+            return calendar.getTime();
+        }
+
+        match = TIMESTAMP.matcher(value);
+        if (!match.matches()) {
+            return null;
+        }
+        String seconds = match.group(6);
+        if (match.group(7) != null) {
+            seconds = seconds + "." + match.group(7);
+        }
+        double fractions = Double.parseDouble(seconds);
+        int wholeSeconds = (int) Math.round(Math.floor(fractions));
+        int millis = (int) Math.round((fractions - wholeSeconds) * 1000);
+
+        TimeZone zone = TimeZone.getTimeZone("UTC");
+        if (match.group(8) != null) {
+            zone = TimeZone.getTimeZone("GMT" + match.group(8) + ":" + (match.group(9) != null ? match.group(9) : "00"));
+        }
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.clear();
+        calendar.set(Integer.parseInt(match.group(1)), Integer.parseInt(match.group(2)) - 1, Integer.parseInt(match.group(3)),
+                Integer.parseInt(match.group(4)), Integer.parseInt(match.group(5)), wholeSeconds);
+        calendar.set(Calendar.MILLISECOND, millis);
+        return calendar.getTime();
+    }
+
+    /**
+     * @return an error carrying the mark of the event, so the line number is reported
+     */
+    private static InvalidConfigurationException error(String problem, Mark mark) {
+        return new InvalidConfigurationException(problem + "\n" + mark);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,209 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+
+/**
+ * Write-behind saving of the configuration. Mutations only mark the configuration
+ * dirty; saves within the delay window are coalesced into one, serialized off the
+ * main thread from a snapshot and written atomically through a temporary file.
+ */
+final class ConfigSaver {
+
+    private final PermissionsPlugin plugin;
+    private final File file;
+
+    private BukkitTask pending;
+    private boolean dirty = false;
+    private long sequence = 0;
+    private long written = 0;
+    // the newest write that finished, whether or not it succeeded
+    private long finished = 0;
+    private int writtenHash = 0;
+    private int writtenLength = -1;
+    private final Object writeLock = new Object();
+
+    ConfigSaver(PermissionsPlugin plugin, File file) {
+        this.plugin = plugin;
+        this.file = file;
+    }
+
+    /**
+     * Marks the configuration dirty. Must be called from the main thread.
+     */
+    void markDirty() {
+        dirty = true;
+        int delay = plugin.getConfig().getInt("save-delay", 20);
+        if (delay <= 0 || !plugin.isEnabled()) {
+            flush();
+            return;
+        }
+        if (pending == null) {
+            pending = plugin.getServer().getScheduler().runTaskLater(plugin, new Runnable() {
+                public void run() {
+                    pending = null;
+                    dirty = false;
+                    final YamlConfiguration snapshot = snapshot();
+                    final long seq = ++sequence;
+                    plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+                        public void run() {
+                            write(snapshot, seq);
+                        }
+                    });
+                }
+            }, delay);
+        }
+    }
+
+    /**
+     * Drops a pending save, used when an external edit of the file is about to replace
+     * the configuration.
+     *
+     * @return whether there were unsaved changes
+     */
+    boolean cancel() {
+        if (pending != null) {
+            pending.cancel();
+            pending = null;
+        }
+        boolean dropped = dirty;
+        dirty = false;
+        return dropped;
+    }
+
+    /**
+     * Waits until every write that was started has finished, so that the file can be
+     * read back. Must be called from the main thread.
+     */
+    void await() {
+        long until = System.currentTimeMillis() + 10000;
+        synchronized (writeLock) {
+            try {
+                long left;
+                while (finished < sequence && (left = until - System.currentTimeMillis()) > 0) {
+                    writeLock.wait(left);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (finished < sequence) {
+                plugin.getLogger().warning("Timed out waiting for " + file + " to be saved");
+            }
+        }
+    }
+
+    /**
+     * Writes the configuration synchronously if it has unsaved changes, superseding
+     * any pending save.
+     */
+    void flush() {
+        if (dirty) {
+            cancel();
+            write(snapshot(), ++sequence);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the configuration for a write that the caller runs itself, in
+     * order with its other writes. Supersedes any pending save.
+     *
+     * @return the write, answering whether config.yml is at least as new as the snapshot
+     */
+    Callable<Boolean> prepare() {
+        cancel();
+        final YamlConfiguration snapshot = snapshot();
+        final long seq = ++sequence;
+        return new Callable<Boolean>() {
+            public Boolean call() {
+                return write(snapshot, seq);
+            }
+        };
+    }
+
+    /**
+     * @return whether the data is exactly what this saver wrote last
+     */
+    boolean isOwnWrite(String data) {
+        synchronized (writeLock) {
+            return data.length() == writtenLength && data.hashCode() == writtenHash;
+        }
+    }
+
+    private YamlConfiguration snapshot() {
+        YamlConfiguration snapshot = new YamlConfiguration();
+        snapshot.options().pathSeparator('/');
+        snapshot.options().header(plugin.getConfig().options().header());
+        PermissionsPlugin.copySection(plugin.getConfig(), snapshot);
+        if (plugin.getUserStore() != null) {
+            // users with their own file are written by the user store
+            ConfigurationSection users = snapshot.getConfigurationSection("users");
+            if (users != null) {
+                for (String key : users.getKeys(false)) {
+                    if (PermissionsModel.parseUUID(key) != null) {
+                        users.set(key, null);
+                    }
+                }
+                if (users.getKeys(false).isEmpty()) {
+                    snapshot.set("users", null);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private boolean write(YamlConfiguration snapshot, long seq) {
+        String data = snapshot.saveToString();
+        synchronized (writeLock) {
+            try {
+                return writeFile(data, seq);
+            } finally {
+                finished = Math.max(finished, seq);
+                writeLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Only called while holding the write lock.
+     */
+    private boolean writeFile(String data, long seq) {
+        if (seq < written) {
+            // a newer snapshot already made it to disk
+            return true;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                writer.write(data);
+            } finally {
+                writer.close();
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            written = seq;
+            writtenHash = data.hashCode();
+            writtenLength = data.length();
+            return true;
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to save configuration", ex);
+            return false;
+        }
+    }
+
+}
\ No newline at end of file
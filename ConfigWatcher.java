@@ -0,0 +1,128 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Watches the data folder and applies external edits of config.yml without a manual
+ * reload. Bursts of change events are debounced, the file is parsed on the watcher
+ * thread and only a successfully parsed configuration is handed to the main thread.
+ * Files that match what {@link ConfigSaver} wrote last are ignored.
+ */
+final class ConfigWatcher implements Runnable {
+
+    private static final long DEBOUNCE_MILLIS = 500;
+
+    private final PermissionsPlugin plugin;
+    private final File file;
+    private final ConfigSaver saver;
+
+    private WatchService service;
+    private Thread thread;
+
+    ConfigWatcher(PermissionsPlugin plugin, File file, ConfigSaver saver) {
+        this.plugin = plugin;
+        this.file = file;
+        this.saver = saver;
+    }
+
+    void start() {
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            file.getParentFile().toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to watch " + file + " for changes", ex);
+            return;
+        }
+
+        thread = new Thread(this, "bPermissions config watcher");
+        thread.setDaemon(true);
+        thread.start();
+        plugin.debug("Watching " + file + " for external changes");
+    }
+
+    void stop() {
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                if (!await(service.take())) {
+                    continue;
+                }
+
+                // wait until the burst is over before looking at the file
+                WatchKey key;
+                while ((key = service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    await(key);
+                }
+
+                load();
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // stopped
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Consumes the events of a key.
+     *
+     * @return whether any of them concerned the watched file
+     */
+    private boolean await(WatchKey key) {
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (context instanceof Path && ((Path) context).getFileName().toString().equals(file.getName())) {
+                relevant = true;
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+
+    private void load() {
+        String data;
+        try {
+            data = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.WARNING, "Failed to read changed " + file, ex);
+            return;
+        }
+
+        if (saver.isOwnWrite(data)) {
+            return;
+        }
+
+        final YamlConfiguration parsed = new YamlConfiguration();
+        parsed.options().pathSeparator('/');
+        try {
+            ConfigLoader.load(data, parsed);
+        } catch (InvalidConfigurationException ex) {
+            plugin.reportInvalidConfig(ex);
+            plugin.getLogger().warning("Ignoring the change to " + file.getName() + " and keeping the previous configuration");
+            return;
+        }
+
+        plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+            public void run() {
+                plugin.applyExternalConfig(parsed);
+            }
+        });
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,103 @@
+package me.bursty.ranks.main;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing table from int keys (entity ids) to the time something was last
+ * allowed for them, so rate limiting a busy event needs neither boxing nor an entry
+ * object per player. Only used from the main thread.
+ */
+final class CooldownTable {
+
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private long[] times;
+    private int size = 0;
+
+    CooldownTable() {
+        keys = new int[64];
+        times = new long[64];
+        Arrays.fill(keys, FREE);
+    }
+
+    /**
+     * Records an attempt at the given time.
+     *
+     * @return whether the key's cooldown has passed, in which case it starts over
+     */
+    boolean tryAcquire(int key, long now, long cooldown) {
+        int slot = find(key);
+        if (keys[slot] == key) {
+            if (now - times[slot] < cooldown) {
+                return false;
+            }
+            times[slot] = now;
+            return true;
+        }
+
+        keys[slot] = key;
+        times[slot] = now;
+        if (++size * 2 > keys.length) {
+            resize();
+        }
+        return true;
+    }
+
+    void remove(int key) {
+        int slot = find(key);
+        if (keys[slot] != key) {
+            return;
+        }
+        keys[slot] = FREE;
+        --size;
+
+        // shift back entries that probed past the freed slot
+        int mask = keys.length - 1;
+        int free = slot;
+        for (int i = (slot + 1) & mask; keys[i] != FREE; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                keys[free] = keys[i];
+                times[free] = times[i];
+                keys[i] = FREE;
+                free = i;
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        long[] oldTimes = times;
+        keys = new int[oldKeys.length * 2];
+        times = new long[oldKeys.length * 2];
+        Arrays.fill(keys, FREE);
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != FREE) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                times[slot] = oldTimes[i];
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
\ No newline at end of file
@@ -6,6 +6,7 @@ import org.bukkit.entity.Player;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 
@@ -23,51 +24,46 @@ public final class Group {
         return name;
     }
 
+    /**
+     * Users kept in a user storage are only included while they are loaded.
+     */
     @Deprecated
     public List<String> getPlayers() {
+        PermissionsSnapshot snapshot = plugin.getSnapshot();
         ArrayList<String> result = new ArrayList<String>();
-        if (plugin.getNode("users") != null) {
-            for (String user : plugin.getNode("users").getKeys(false)) {
-                ConfigurationSection node = plugin.getNode("users/" + user);
-                for (String group : node.getStringList("groups")) {
-                    if (name.equalsIgnoreCase(group) && !result.contains(user)) {
-                        if (node.getString("name") != null) {
-                            result.add(node.getString("name"));
-                        } else {
-                            result.add(user);
-                        }
-                        break;
-                    }
+        for (UUID uuid : plugin.getMembers(name)) {
+            // the index and the snapshot are published one after the other
+            PermissionsSnapshot.UserRecord user = snapshot.getUser(uuid);
+            result.add(user != null && user.name != null ? user.name : uuid.toString());
+        }
+
+        // users that were never migrated are not in the index, but there are rarely any left
+        for (ConfigurationSection node : plugin.getLegacyUserNodes()) {
+            for (String group : node.getStringList("groups")) {
+                if (name.equalsIgnoreCase(group)) {
+                    result.add(node.getString("name") != null ? node.getString("name") : node.getName());
+                    break;
                 }
             }
         }
         return result;
     }
 
+    /**
+     * Users kept in a user storage are only included while they are loaded.
+     */
     public List<UUID> getPlayerUUIDs() {
-        ArrayList<UUID> result = new ArrayList<UUID>();
-        if (plugin.getNode("users") != null) {
-            for (String user : plugin.getNode("users").getKeys(false)) {
-                UUID uuid;
-                try {
-                    uuid = UUID.fromString(user);
-                } catch (IllegalArgumentException ex) {
-                    continue;
-                }
-                for (String group : plugin.getNode("users/" + user).getStringList("groups")) {
-                    if (name.equalsIgnoreCase(group) && !result.contains(uuid)) {
-                        result.add(uuid);
-                        break;
-                    }
-                }
-            }
-        }
-        return result;
+        return new ArrayList<UUID>(plugin.getMembers(name));
     }
 
     public List<Player> getOnlinePlayers() {
+        Set<UUID> members = plugin.getMembers(name);
         ArrayList<Player> result = new ArrayList<Player>();
-        for (UUID uuid : getPlayerUUIDs()) {
+        for (UUID uuid : plugin.getOnlineMembers(name)) {
+            // players only resolving through the default group are not members of it
+            if (!members.contains(uuid)) {
+                continue;
+            }
             Player player = Bukkit.getServer().getPlayer(uuid);
             if (player != null && player.isOnline()) {
                 result.add(player);
@@ -77,11 +73,12 @@ public final class Group {
     }
 
     public PermissionInfo getInfo() {
-        ConfigurationSection node = plugin.getNode("groups/" + name);
-        if (node == null) {
+        PermissionsSnapshot snapshot = plugin.getSnapshot();
+        PermissionsSnapshot.GroupRecord group = snapshot.getGroup(name);
+        if (group == null) {
             return null;
         }
-        return new PermissionInfo(plugin, node, "inheritance");
+        return new PermissionInfo(plugin, snapshot, group);
     }
 
     @Override
@@ -0,0 +1,218 @@
+package me.bursty.ranks.main;
+
+import java.util.*;
+
+/**
+ * Immutable hash map where {@link #with} returns a new map that shares everything but
+ * the path to the changed entry with the old one, so a change costs the depth of the
+ * trie instead of a copy of the whole map. Entries are filed by five bits of their hash
+ * per level, and keys with equal hashes share a node at the bottom. Null values are
+ * kept like any other.
+ */
+final class HashTrie<K, V> extends AbstractMap<K, V> {
+
+    private static final Object NOT_FOUND = new Object();
+    private static final HashTrie<Object, Object> EMPTY = new HashTrie<Object, Object>(new BitmapNode(0, new Object[0]), 0);
+
+    private abstract static class Node {
+        abstract Object find(Object key, int hash, int shift);
+
+        /**
+         * @param added set to true if the key was not in the node yet
+         */
+        abstract Node put(Object key, int hash, Object value, int shift, boolean[] added);
+
+        abstract void collect(List<Map.Entry<Object, Object>> result);
+    }
+
+    /**
+     * Holds key and value pairs side by side; a null key means the value is the node
+     * for the next level.
+     */
+    private static final class BitmapNode extends Node {
+        private final int bitmap;
+        private final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        Object find(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[index];
+            if (k == null) {
+                return ((Node) array[index + 1]).find(key, hash, shift + 5);
+            }
+            return key.equals(k) ? array[index + 1] : NOT_FOUND;
+        }
+
+        Node put(Object key, int hash, Object value, int shift, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[array.length + 2];
+                System.arraycopy(array, 0, copy, 0, index);
+                copy[index] = key;
+                copy[index + 1] = value;
+                System.arraycopy(array, index, copy, index + 2, array.length - index);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, copy);
+            }
+
+            Object k = array[index];
+            Object v = array[index + 1];
+            Object[] copy = array.clone();
+            if (k == null) {
+                Node child = ((Node) v).put(key, hash, value, shift + 5, added);
+                if (child == v) {
+                    return this;
+                }
+                copy[index + 1] = child;
+            } else if (key.equals(k)) {
+                if (v == value) {
+                    return this;
+                }
+                copy[index + 1] = value;
+            } else {
+                added[0] = true;
+                copy[index] = null;
+                copy[index + 1] = pair(k, v, key, hash, value, shift + 5);
+            }
+            return new BitmapNode(bitmap, copy);
+        }
+
+        void collect(List<Map.Entry<Object, Object>> result) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).collect(result);
+                } else {
+                    result.add(new AbstractMap.SimpleImmutableEntry<Object, Object>(array[i], array[i + 1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Keys whose hashes are all the same.
+     */
+    private static final class CollisionNode extends Node {
+        private final int hash;
+        private final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        Object find(Object key, int hash, int shift) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return array[i + 1];
+                }
+            }
+            return NOT_FOUND;
+        }
+
+        Node put(Object key, int hash, Object value, int shift, boolean[] added) {
+            if (hash != this.hash) {
+                // a key that only shared the hash bits so far moves this node a level down
+                Node node = new BitmapNode(1 << ((this.hash >>> shift) & 31), new Object[] { null, this });
+                return node.put(key, hash, value, shift, added);
+            }
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    if (array[i + 1] == value) {
+                        return this;
+                    }
+                    Object[] copy = array.clone();
+                    copy[i + 1] = value;
+                    return new CollisionNode(hash, copy);
+                }
+            }
+            Object[] copy = Arrays.copyOf(array, array.length + 2);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, copy);
+        }
+
+        void collect(List<Map.Entry<Object, Object>> result) {
+            for (int i = 0; i < array.length; i += 2) {
+                result.add(new AbstractMap.SimpleImmutableEntry<Object, Object>(array[i], array[i + 1]));
+            }
+        }
+    }
+
+    private static Node pair(Object key1, Object value1, Object key2, int hash2, Object value2, int shift) {
+        int hash1 = key1.hashCode();
+        if (hash1 == hash2) {
+            return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+        }
+        boolean[] added = new boolean[1];
+        return new BitmapNode(0, new Object[0]).put(key1, hash1, value1, shift, added).put(key2, hash2, value2, shift, added);
+    }
+
+    private final Node root;
+    private final int size;
+
+    private HashTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> HashTrie<K, V> empty() {
+        return (HashTrie<K, V>) EMPTY;
+    }
+
+    /**
+     * @return a map with the key set to the value, which may be null
+     */
+    HashTrie<K, V> with(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node newRoot = root.put(key, key.hashCode(), value, 0, added);
+        return newRoot == root ? this : new HashTrie<K, V>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        Object value = root.find(key, key.hashCode(), 0);
+        return value == NOT_FOUND ? null : (V) value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && root.find(key, key.hashCode(), 0) != NOT_FOUND;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @SuppressWarnings({ "unchecked", "rawtypes" })
+            public Iterator<Map.Entry<K, V>> iterator() {
+                ArrayList<Map.Entry<Object, Object>> entries = new ArrayList<Map.Entry<Object, Object>>(size);
+                root.collect(entries);
+                return Collections.unmodifiableList((List) entries).iterator();
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+}
\ No newline at end of file
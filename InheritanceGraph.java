@@ -0,0 +1,122 @@
+package me.bursty.ranks.main;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Group inheritance compiled into a DAG. Cycles are reported once while building and
+ * the offending edges dropped, so resolution can recurse without a guard. Every group
+ * also gets its reverse edges and the set of groups inheriting from it.
+ *
+ * <p>All names are lower-cased. Parents that do not exist as groups are kept as edges
+ * but have no node of their own.
+ */
+final class InheritanceGraph {
+
+    private final HashMap<String, List<String>> parents = new HashMap<String, List<String>>();
+    private final HashMap<String, List<String>> children = new HashMap<String, List<String>>();
+    private final HashMap<String, Set<String>> descendants = new HashMap<String, Set<String>>();
+    private final HashMap<String, Set<String>> ancestors = new HashMap<String, Set<String>>();
+    private final ArrayList<String> order = new ArrayList<String>();
+
+    InheritanceGraph(Collection<PermissionsSnapshot.GroupRecord> groups, Logger logger) {
+        LinkedHashMap<String, PermissionsSnapshot.GroupRecord> byName = new LinkedHashMap<String, PermissionsSnapshot.GroupRecord>();
+        for (PermissionsSnapshot.GroupRecord group : groups) {
+            byName.put(group.name.toLowerCase(), group);
+        }
+
+        HashSet<String> visiting = new HashSet<String>(), done = new HashSet<String>();
+        for (String name : byName.keySet()) {
+            visit(name, byName, visiting, done, logger);
+        }
+
+        for (Map.Entry<String, List<String>> entry : parents.entrySet()) {
+            for (String parent : entry.getValue()) {
+                List<String> list = children.get(parent);
+                if (list == null) {
+                    list = new ArrayList<String>();
+                    children.put(parent, list);
+                }
+                list.add(entry.getKey());
+            }
+        }
+
+        // children come after their parents, so walking backwards sees them first
+        for (int i = order.size() - 1; i >= 0; --i) {
+            String name = order.get(i);
+            HashSet<String> set = new HashSet<String>();
+            set.add(name);
+            for (String child : getChildren(name)) {
+                set.addAll(descendants.get(child));
+            }
+            descendants.put(name, Collections.unmodifiableSet(set));
+        }
+
+        for (String name : order) {
+            HashSet<String> set = new HashSet<String>();
+            set.add(name);
+            for (String parent : getParents(name)) {
+                set.addAll(getAncestors(parent));
+            }
+            ancestors.put(name, Collections.unmodifiableSet(set));
+        }
+    }
+
+    private void visit(String name, Map<String, PermissionsSnapshot.GroupRecord> byName, Set<String> visiting, Set<String> done, Logger logger) {
+        if (done.contains(name)) {
+            return;
+        }
+        visiting.add(name);
+
+        PermissionsSnapshot.GroupRecord group = byName.get(name);
+        ArrayList<String> edges = new ArrayList<String>(group.inheritance.size());
+        for (String parent : group.inheritance) {
+            String key = parent.toLowerCase();
+            if (visiting.contains(key)) {
+                if (logger != null) {
+                    logger.warning("In group " + group.name + ": recursive inheritance from " + parent);
+                }
+                continue;
+            }
+            if (byName.containsKey(key)) {
+                visit(key, byName, visiting, done, logger);
+            }
+            edges.add(key);
+        }
+        parents.put(name, Collections.unmodifiableList(edges));
+
+        visiting.remove(name);
+        done.add(name);
+        order.add(name);
+    }
+
+    /**
+     * @return the parents of a group in inheritance order, without edges closing a cycle
+     */
+    List<String> getParents(String group) {
+        List<String> list = parents.get(group.toLowerCase());
+        return list == null ? Collections.<String>emptyList() : list;
+    }
+
+    List<String> getChildren(String group) {
+        List<String> list = children.get(group.toLowerCase());
+        return list == null ? Collections.<String>emptyList() : list;
+    }
+
+    /**
+     * @return the group itself and every group inheriting from it, directly or not
+     */
+    Set<String> getDescendants(String group) {
+        Set<String> set = descendants.get(group.toLowerCase());
+        return set == null ? Collections.singleton(group.toLowerCase()) : set;
+    }
+
+    /**
+     * @return the group itself and every group it inherits from, directly or not
+     */
+    Set<String> getAncestors(String group) {
+        Set<String> set = ancestors.get(group.toLowerCase());
+        return set == null ? Collections.singleton(group.toLowerCase()) : set;
+    }
+
+}
\ No newline at end of file
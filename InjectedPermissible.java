@@ -0,0 +1,237 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.*;
+import org.bukkit.plugin.PluginManager;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Permissible injected into players in place of Bukkit's {@link PermissibleBase}. Checks
+ * are answered from the player's expanded permissions with a single map lookup, then
+ * from their wildcards, falling back to the base implementation for anything this plugin
+ * does not set, so attachments of other plugins, defaults and op status keep working.
+ * Like with attachments, nodes that attachments added after this plugin's also set are
+ * left to those attachments.
+ *
+ * <p>Updating the permissions swaps one volatile reference and subscribes the player
+ * to the nodes it added, so broadcasts still reach them; no recalculation of the base
+ * is needed. Checks may come from any thread.
+ */
+final class InjectedPermissible extends PermissibleBase {
+
+    private static Field permField, attachmentsField;
+
+    private final Player player;
+    private final PermissibleBase previous;
+    private volatile PermissionExpander.Expanded values = PermissionExpander.Expanded.EMPTY;
+    private volatile PermissionAttachment attachment;
+    // lower-cased nodes set by attachments added after this plugin's, which win over its values
+    private volatile Set<String> overridden = Collections.emptySet();
+
+    private InjectedPermissible(Player player, PermissibleBase previous) {
+        super(player);
+        this.player = player;
+        this.previous = previous;
+    }
+
+    /**
+     * Replaces the permissible of a player, carrying over the attachments other
+     * plugins already added.
+     */
+    @SuppressWarnings("unchecked")
+    static InjectedPermissible inject(Player player) throws ReflectiveOperationException {
+        Field field = getPermField(player.getClass());
+        PermissibleBase previous = (PermissibleBase) field.get(player);
+        if (previous instanceof InjectedPermissible) {
+            return (InjectedPermissible) previous;
+        }
+
+        InjectedPermissible permissible = new InjectedPermissible(player, previous);
+        if (attachmentsField == null) {
+            attachmentsField = PermissibleBase.class.getDeclaredField("attachments");
+            attachmentsField.setAccessible(true);
+        }
+        List<PermissionAttachment> attachments = (List<PermissionAttachment>) attachmentsField.get(permissible);
+        attachments.addAll((List<PermissionAttachment>) attachmentsField.get(previous));
+
+        field.set(player, permissible);
+        permissible.recalculatePermissions();
+        return permissible;
+    }
+
+    /**
+     * Puts the original permissible back, with whatever attachments remain.
+     */
+    @SuppressWarnings("unchecked")
+    void uninject() throws ReflectiveOperationException {
+        Field field = getPermField(player.getClass());
+        if (field.get(player) != this) {
+            return;
+        }
+        List<PermissionAttachment> attachments = (List<PermissionAttachment>) attachmentsField.get(previous);
+        attachments.clear();
+        attachments.addAll((List<PermissionAttachment>) attachmentsField.get(this));
+
+        PluginManager pluginManager = player.getServer().getPluginManager();
+        for (String name : values.values.keySet()) {
+            pluginManager.unsubscribeFromPermission(name, player);
+        }
+        field.set(player, previous);
+        previous.recalculatePermissions();
+    }
+
+    private static Field getPermField(Class<?> type) throws NoSuchFieldException {
+        if (permField == null) {
+            // CraftHumanEntity keeps it in a field named perm
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                try {
+                    Field field = c.getDeclaredField("perm");
+                    field.setAccessible(true);
+                    permField = field;
+                    break;
+                } catch (NoSuchFieldException ignored) {
+                }
+            }
+            if (permField == null) {
+                throw new NoSuchFieldException("perm");
+            }
+        }
+        return permField;
+    }
+
+    /**
+     * Must be called from the main thread.
+     */
+    void setValues(PermissionExpander.Expanded expanded) {
+        PermissionExpander.Expanded old = values;
+        values = expanded;
+
+        PluginManager pluginManager = player.getServer().getPluginManager();
+        for (String name : old.values.keySet()) {
+            if (!expanded.values.containsKey(name) && !super.isPermissionSet(name)) {
+                pluginManager.unsubscribeFromPermission(name, player);
+            }
+        }
+        for (String name : expanded.values.keySet()) {
+            if (!old.values.containsKey(name)) {
+                pluginManager.subscribeToPermission(name, player);
+            }
+        }
+    }
+
+    /**
+     * Tells the permissible which attachment is this plugin's, so that attachments added
+     * after it can win over its values.
+     */
+    void setAttachment(PermissionAttachment attachment) {
+        this.attachment = attachment;
+        updateOverrides();
+    }
+
+    @Override
+    public void recalculatePermissions() {
+        super.recalculatePermissions();
+        if (player == null) {
+            // called by the base constructor
+            return;
+        }
+        // the base drops every subscription of nodes it does not set itself
+        PluginManager pluginManager = player.getServer().getPluginManager();
+        for (String name : values.values.keySet()) {
+            pluginManager.subscribeToPermission(name, player);
+        }
+        updateOverrides();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void updateOverrides() {
+        List<PermissionAttachment> attachments;
+        try {
+            attachments = (List<PermissionAttachment>) attachmentsField.get(this);
+        } catch (IllegalAccessException ex) {
+            // made accessible when injecting
+            throw new IllegalStateException(ex);
+        }
+        int own = attachment == null ? -1 : attachments.indexOf(attachment);
+        if (own < 0 || own == attachments.size() - 1) {
+            overridden = Collections.emptySet();
+            return;
+        }
+
+        HashSet<PermissionAttachment> later = new HashSet<PermissionAttachment>(attachments.subList(own + 1, attachments.size()));
+        HashSet<String> names = new HashSet<String>();
+        for (PermissionAttachmentInfo info : super.getEffectivePermissions()) {
+            if (info.getAttachment() != null && later.contains(info.getAttachment())) {
+                names.add(info.getPermission());
+            }
+        }
+        overridden = names;
+    }
+
+    PermissionExpander.Expanded getValues() {
+        return values;
+    }
+
+    private Boolean lookup(String name) {
+        PermissionExpander.Expanded expanded = values;
+        String key = isLowerCase(name) ? name : name.toLowerCase();
+        if (overridden.contains(key)) {
+            return null;
+        }
+        Boolean value = expanded.values.get(key);
+        if (value == null && expanded.wildcards != null) {
+            value = expanded.wildcards.match(name);
+        }
+        return value;
+    }
+
+    private static boolean isLowerCase(String name) {
+        for (int i = 0; i < name.length(); ++i) {
+            if (Character.isUpperCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isPermissionSet(String name) {
+        return lookup(name) != null || super.isPermissionSet(name);
+    }
+
+    @Override
+    public boolean isPermissionSet(Permission perm) {
+        return lookup(perm.getName()) != null || super.isPermissionSet(perm);
+    }
+
+    @Override
+    public boolean hasPermission(String name) {
+        Boolean value = lookup(name);
+        return value != null ? value : super.hasPermission(name);
+    }
+
+    @Override
+    public boolean hasPermission(Permission perm) {
+        Boolean value = lookup(perm.getName());
+        return value != null ? value : super.hasPermission(perm);
+    }
+
+    @Override
+    public Set<PermissionAttachmentInfo> getEffectivePermissions() {
+        HashMap<String, PermissionAttachmentInfo> result = new HashMap<String, PermissionAttachmentInfo>();
+        for (PermissionAttachmentInfo info : super.getEffectivePermissions()) {
+            result.put(info.getPermission(), info);
+        }
+        Set<String> skipped = overridden;
+        for (Map.Entry<String, Boolean> entry : values.values.entrySet()) {
+            if (skipped.contains(entry.getKey())) {
+                continue;
+            }
+            result.put(entry.getKey(), new PermissionAttachmentInfo(this, entry.getKey(), null, entry.getValue()));
+        }
+        return new HashSet<PermissionAttachmentInfo>(result.values());
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,123 @@
+package me.bursty.ranks.main;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reverse index from lower-cased group names to the players filed under them. Lookups
+ * cost the size of the group, not the user count.
+ *
+ * <p>Updates happen on the main thread and change a group's member set in place. The sets
+ * are concurrent, so lookups are safe from any thread without locking, and joining or
+ * leaving a group does not copy everyone else in it. Each player remembers when they
+ * were filed under a group, so that members can still be listed in that order.
+ */
+final class MembershipIndex {
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<UUID, Long>> members = new ConcurrentHashMap<String, ConcurrentHashMap<UUID, Long>>();
+    private final HashMap<UUID, List<String>> groups = new HashMap<UUID, List<String>>();
+    private long sequence = 0;
+
+    /**
+     * Builds an index of many players at once, filed in the iteration order of the map.
+     */
+    static MembershipIndex build(Map<UUID, List<String>> groupLists) {
+        MembershipIndex index = new MembershipIndex();
+        for (Map.Entry<UUID, List<String>> entry : groupLists.entrySet()) {
+            index.put(entry.getKey(), entry.getValue());
+        }
+        return index;
+    }
+
+    private static List<String> keys(List<String> groupList) {
+        ArrayList<String> keys = new ArrayList<String>(groupList.size());
+        for (String group : groupList) {
+            String key = group.toLowerCase();
+            if (!keys.contains(key)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Files a player under exactly the given groups, replacing wherever they were before.
+     */
+    void put(UUID uuid, List<String> groupList) {
+        List<String> previous = groups.get(uuid);
+        List<String> keys = keys(groupList);
+        if (keys.equals(previous)) {
+            return;
+        }
+
+        // groups the player stays in keep their place
+        if (previous != null) {
+            for (String key : previous) {
+                if (!keys.contains(key)) {
+                    unfile(uuid, key);
+                }
+            }
+        }
+        for (String key : keys) {
+            if (previous == null || !previous.contains(key)) {
+                ConcurrentHashMap<UUID, Long> set = members.get(key);
+                if (set == null) {
+                    set = new ConcurrentHashMap<UUID, Long>();
+                    members.put(key, set);
+                }
+                set.put(uuid, ++sequence);
+            }
+        }
+        groups.put(uuid, keys);
+    }
+
+    void remove(UUID uuid) {
+        List<String> keys = groups.remove(uuid);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            unfile(uuid, key);
+        }
+    }
+
+    private void unfile(UUID uuid, String key) {
+        ConcurrentHashMap<UUID, Long> set = members.get(key);
+        if (set != null) {
+            set.remove(uuid);
+            if (set.isEmpty()) {
+                members.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return a live view of the members, in no particular order
+     */
+    Set<UUID> get(String group) {
+        ConcurrentHashMap<UUID, Long> set = members.get(group.toLowerCase());
+        return set == null ? Collections.<UUID>emptySet() : Collections.unmodifiableSet(set.keySet());
+    }
+
+    /**
+     * @return the members in the order they were filed under the group
+     */
+    Set<UUID> getInOrder(String group) {
+        ConcurrentHashMap<UUID, Long> set = members.get(group.toLowerCase());
+        if (set == null) {
+            return Collections.emptySet();
+        }
+        ArrayList<Map.Entry<UUID, Long>> entries = new ArrayList<Map.Entry<UUID, Long>>(set.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<UUID, Long>>() {
+            public int compare(Map.Entry<UUID, Long> a, Map.Entry<UUID, Long> b) {
+                return a.getValue().compareTo(b.getValue());
+            }
+        });
+        LinkedHashSet<UUID> result = new LinkedHashSet<UUID>();
+        for (Map.Entry<UUID, Long> entry : entries) {
+            result.add(entry.getKey());
+        }
+        return result;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.PermissibleBase;
+import org.bukkit.permissions.PermissionAttachmentInfo;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.Map;
+
+/**
+ * Read access to the permissions Bukkit has calculated for a player, which their
+ * {@link PermissibleBase} keeps in a private map. Every recalculation fills that map with
+ * new {@link PermissionAttachmentInfo} objects, so comparing one with an earlier one
+ * tells whether anything recalculated the player since, without copying the set like
+ * {@code getEffectivePermissions} does.
+ *
+ * <p>The fields are resolved once into method handles, like in {@link AttachmentAccess}.
+ * On servers where they cannot be found, nothing is ever returned.
+ */
+final class PermissibleAccess {
+
+    private static final MethodHandle PERMISSIONS;
+
+    private static Class<?> playerClass;
+    private static MethodHandle perm;
+
+    static {
+        MethodHandle handle = null;
+        try {
+            Field field = PermissibleBase.class.getDeclaredField("permissions");
+            field.setAccessible(true);
+            handle = MethodHandles.lookup().unreflectGetter(field);
+        } catch (Exception ex) {
+            handle = null;
+        }
+        PERMISSIONS = handle;
+    }
+
+    private PermissibleAccess() {
+    }
+
+    /**
+     * Must be called from the main thread.
+     *
+     * @return the calculated entry of a lower-cased node, or null if the player has none
+     * or it cannot be read
+     */
+    @SuppressWarnings("unchecked")
+    static PermissionAttachmentInfo getInfo(Player player, String node) {
+        MethodHandle getter = getPerm(player.getClass());
+        if (PERMISSIONS == null || getter == null) {
+            return null;
+        }
+        try {
+            Object base = getter.invoke(player);
+            if (!(base instanceof PermissibleBase)) {
+                return null;
+            }
+            return ((Map<String, PermissionAttachmentInfo>) PERMISSIONS.invoke(base)).get(node);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    private static MethodHandle getPerm(Class<?> type) {
+        if (type != playerClass) {
+            playerClass = type;
+            perm = null;
+            // CraftHumanEntity keeps it in a field named perm
+            for (Class<?> c = type; c != null && perm == null; c = c.getSuperclass()) {
+                try {
+                    Field field = c.getDeclaredField("perm");
+                    field.setAccessible(true);
+                    perm = MethodHandles.lookup().unreflectGetter(field);
+                } catch (Exception ignored) {
+                }
+            }
+        }
+        return perm;
+    }
+
+}
\ No newline at end of file
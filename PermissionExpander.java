@@ -0,0 +1,188 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.permissions.Permission;
+import org.bukkit.plugin.PluginManager;
+
+import java.util.*;
+
+/**
+ * Expands resolved permissions with the children of registered permissions, the same
+ * way {@code PermissibleBase} does on every recalculation, and compiles wildcard nodes
+ * into a {@link WildcardTrie}. Shared maps are canonical for as long as the groups do
+ * not change, so their expansion is memoized by identity and only thrown away when a
+ * group or the whole configuration is recompiled, or when plugins are enabled or
+ * disabled and their permissions registered or removed.
+ *
+ * <p>Without the injected permissible, Bukkit only ever checks exact nodes, so for
+ * attachments a wildcard is expanded into the registered permissions it covers, looked
+ * up in a {@link PermissionTrie}. A wildcard node that is a registered permission itself,
+ * like a plugin's own {@code plugin.*}, is no wildcard: its children are left to the
+ * usual child expansion.
+ */
+final class PermissionExpander {
+
+    static final class Expanded {
+        static final Expanded EMPTY = new Expanded(Collections.<String, Boolean>emptyMap(), null);
+
+        /**
+         * Unmodifiable, keyed by lower-cased node.
+         */
+        final Map<String, Boolean> values;
+        /**
+         * Null when no wildcards are set.
+         */
+        final WildcardTrie wildcards;
+
+        private Expanded(Map<String, Boolean> values, WildcardTrie wildcards) {
+            this.values = values;
+            this.wildcards = wildcards;
+        }
+    }
+
+    private final PluginManager pluginManager;
+    private final IdentityHashMap<Map<String, Boolean>, Expanded> cache = new IdentityHashMap<Map<String, Boolean>, Expanded>();
+    private final IdentityHashMap<Map<String, Boolean>, Map<String, Boolean>> attachmentCache = new IdentityHashMap<Map<String, Boolean>, Map<String, Boolean>>();
+    // built on the first wildcard, until plugins are enabled or disabled
+    private PermissionTrie registered;
+
+    PermissionExpander(PluginManager pluginManager) {
+        this.pluginManager = pluginManager;
+    }
+
+    /**
+     * @param shared whether values is one of the canonical maps shared between players
+     */
+    Expanded expand(Map<String, Boolean> values, boolean shared) {
+        if (!shared) {
+            return expand0(values);
+        }
+        Expanded expanded = cache.get(values);
+        if (expanded == null) {
+            expanded = expand0(values);
+            cache.put(values, expanded);
+        }
+        return expanded;
+    }
+
+    /**
+     * Values for an attachment, with the registered permissions wildcards cover put
+     * before the nodes that are set explicitly, so those still win along with their
+     * children. Of several wildcards covering a permission the longest wins.
+     *
+     * @param shared whether values is one of the canonical maps shared between players
+     * @return values itself if it has no wildcards
+     */
+    Map<String, Boolean> expandWildcards(Map<String, Boolean> values, boolean shared) {
+        if (!shared) {
+            return expandWildcards0(values, false);
+        }
+        Map<String, Boolean> expanded = attachmentCache.get(values);
+        if (expanded == null) {
+            expanded = expandWildcards0(values, true);
+            attachmentCache.put(values, expanded);
+        }
+        return expanded;
+    }
+
+    void invalidate() {
+        cache.clear();
+        attachmentCache.clear();
+    }
+
+    /**
+     * Forgets the registered permissions after plugins were enabled or disabled.
+     *
+     * @return whether any wildcard was expanded against them, so that attachments may
+     * need expanding again
+     */
+    boolean invalidateRegistered() {
+        boolean used = registered != null;
+        registered = null;
+        invalidate();
+        return used;
+    }
+
+    private Map<String, Boolean> expandWildcards0(Map<String, Boolean> values, boolean shared) {
+        ArrayList<String> wildcards = null;
+        HashSet<String> explicit = new HashSet<String>(values.size() * 2);
+        for (String node : values.keySet()) {
+            String key = node.toLowerCase();
+            explicit.add(key);
+            if (isWildcard(key)) {
+                if (wildcards == null) {
+                    wildcards = new ArrayList<String>();
+                }
+                wildcards.add(node);
+            }
+        }
+        if (wildcards == null) {
+            return values;
+        }
+
+        // shorter wildcards first, so that longer ones overwrite them
+        Collections.sort(wildcards, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return a.length() - b.length();
+            }
+        });
+        PermissionTrie trie = getRegistered();
+        LinkedHashMap<String, Boolean> result = new LinkedHashMap<String, Boolean>();
+        for (String wildcard : wildcards) {
+            Boolean value = values.get(wildcard);
+            String prefix = wildcard.substring(0, wildcard.length() - 1).toLowerCase();
+            for (String name : trie.withPrefix(prefix)) {
+                if (!explicit.contains(name)) {
+                    // moved to the end, after whatever a shorter wildcard set for its children
+                    result.remove(name);
+                    result.put(name, value);
+                }
+            }
+        }
+        result.putAll(values);
+        return shared ? Collections.unmodifiableMap(result) : result;
+    }
+
+    /**
+     * @param key lower-cased
+     */
+    private boolean isWildcard(String key) {
+        return WildcardTrie.isWildcard(key) && pluginManager.getPermission(key) == null;
+    }
+
+    private PermissionTrie getRegistered() {
+        if (registered == null) {
+            registered = new PermissionTrie();
+            for (Permission permission : pluginManager.getPermissions()) {
+                registered.add(permission.getName());
+            }
+        }
+        return registered;
+    }
+
+    private Expanded expand0(Map<String, Boolean> values) {
+        HashMap<String, Boolean> result = new HashMap<String, Boolean>(values.size() * 2);
+        addChildren(result, values, false);
+
+        WildcardTrie wildcards = new WildcardTrie();
+        for (Map.Entry<String, Boolean> entry : result.entrySet()) {
+            if (isWildcard(entry.getKey())) {
+                wildcards.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return new Expanded(Collections.unmodifiableMap(result), wildcards.isEmpty() ? null : wildcards);
+    }
+
+    private void addChildren(Map<String, Boolean> result, Map<String, Boolean> children, boolean invert) {
+        for (Map.Entry<String, Boolean> entry : children.entrySet()) {
+            String name = entry.getKey().toLowerCase();
+            boolean value = entry.getValue() ^ invert;
+            result.put(name, value);
+
+            Permission perm = pluginManager.getPermission(name);
+            if (perm != null) {
+                addChildren(result, perm.getChildren(), !value);
+            }
+        }
+    }
+
+}
\ No newline at end of file
@@ -1,28 +1,42 @@
 package me.bursty.ranks.main;
 
-import org.bukkit.configuration.ConfigurationSection;
-
 import java.util.*;
 
+/**
+ * Read-only view of a group or user as of one snapshot. It never touches the live
+ * configuration, so it can be created and used from any thread.
+ */
 public final class PermissionInfo {
 
     private final PermissionsPlugin plugin;
-    private final ConfigurationSection node;
-    private final String groupType;
+    private final PermissionsSnapshot snapshot;
+    private final List<String> groups;
+    private final PermissionLayer base;
+    private final Map<String, PermissionLayer> worlds;
+
+    PermissionInfo(PermissionsPlugin plugin, PermissionsSnapshot snapshot, PermissionsSnapshot.GroupRecord group) {
+        this(plugin, snapshot, group.inheritance, group.base, group.worlds);
+    }
 
-    PermissionInfo(PermissionsPlugin plugin, ConfigurationSection node, String groupType) {
+    PermissionInfo(PermissionsPlugin plugin, PermissionsSnapshot snapshot, PermissionsSnapshot.UserRecord user) {
+        this(plugin, snapshot, user.groups, user.base, user.worlds);
+    }
+
+    private PermissionInfo(PermissionsPlugin plugin, PermissionsSnapshot snapshot, List<String> groups, PermissionLayer base, Map<String, PermissionLayer> worlds) {
         this.plugin = plugin;
-        this.node = node;
-        this.groupType = groupType;
+        this.snapshot = snapshot;
+        this.groups = groups;
+        this.base = base;
+        this.worlds = worlds;
     }
 
     public List<Group> getGroups() {
         ArrayList<Group> result = new ArrayList<Group>();
 
-        for (String key : node.getStringList(groupType)) {
-            Group group = plugin.getGroup(key);
+        for (String key : groups) {
+            PermissionsSnapshot.GroupRecord group = snapshot.getGroup(key);
             if (group != null) {
-                result.add(group);
+                result.add(new Group(plugin, group.name));
             }
         }
 
@@ -30,18 +44,19 @@ public final class PermissionInfo {
     }
 
     public Map<String, Boolean> getPermissions() {
-        return plugin.getAllPerms(node.getName(), node.getCurrentPath());
+        return base.toMap(snapshot.getTable());
     }
 
+    /**
+     * @return the lower-cased names of the worlds with their own permissions
+     */
     public Set<String> getWorlds() {
-        if (node.getConfigurationSection("worlds") == null) {
-            return new HashSet<String>();
-        }
-        return node.getConfigurationSection("worlds").getKeys(false);
+        return new HashSet<String>(worlds.keySet());
     }
 
     public Map<String, Boolean> getWorldPermissions(String world) {
-        return plugin.getAllPerms(node.getName() + ":" + world, node.getName() + "/world/" + world);
+        PermissionLayer layer = worlds.get(world.toLowerCase());
+        return layer == null ? new LinkedHashMap<String, Boolean>() : layer.toMap(snapshot.getTable());
     }
 
 }
\ No newline at end of file
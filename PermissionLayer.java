@@ -0,0 +1,164 @@
+package me.bursty.ranks.main;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Immutable set of permission values over the ids of a {@link PermissionTable}, stored
+ * as a pair of bitsets (granted, denied). Merging layers only ORs and ANDNOTs words;
+ * the order array remembers which node was set last so that converting back to a map
+ * gives the same ordering as the old remove-then-put merging.
+ */
+final class PermissionLayer {
+
+    static final PermissionLayer EMPTY = new PermissionLayer(new int[0], new BitSet(), new BitSet());
+
+    private final int[] order;
+    private final BitSet granted;
+    private final BitSet denied;
+
+    private PermissionLayer(int[] order, BitSet granted, BitSet denied) {
+        this.order = order;
+        this.granted = granted;
+        this.denied = denied;
+    }
+
+    static PermissionLayer of(PermissionTable table, Map<String, Boolean> values) {
+        if (values.isEmpty()) {
+            return EMPTY;
+        }
+
+        int[] order = new int[values.size()];
+        BitSet granted = new BitSet(), denied = new BitSet();
+        int i = 0;
+        for (Map.Entry<String, Boolean> entry : values.entrySet()) {
+            int id = table.intern(entry.getKey());
+            order[i++] = id;
+            if (entry.getValue()) {
+                granted.set(id);
+            } else {
+                denied.set(id);
+            }
+        }
+        return new PermissionLayer(order, granted, denied);
+    }
+
+    /**
+     * Merges the layers in order, later layers overriding earlier ones.
+     */
+    static PermissionLayer merge(List<PermissionLayer> layers) {
+        PermissionLayer only = null;
+        int total = 0;
+        for (PermissionLayer layer : layers) {
+            if (!layer.isEmpty()) {
+                only = (only == null && total == 0) ? layer : null;
+                total += layer.order.length;
+            }
+        }
+        if (total == 0) {
+            return EMPTY;
+        } else if (only != null) {
+            return only;
+        }
+
+        BitSet granted = new BitSet(), denied = new BitSet();
+        for (PermissionLayer layer : layers) {
+            granted.andNot(layer.denied);
+            granted.or(layer.granted);
+            denied.andNot(layer.granted);
+            denied.or(layer.denied);
+        }
+
+        // walk backwards keeping the last occurrence of every id, then flip the result
+        int[] order = new int[granted.cardinality() + denied.cardinality()];
+        int n = order.length;
+        BitSet seen = new BitSet();
+        for (int l = layers.size() - 1; l >= 0 && n > 0; --l) {
+            int[] src = layers.get(l).order;
+            for (int i = src.length - 1; i >= 0; --i) {
+                int id = src[i];
+                if (!seen.get(id)) {
+                    seen.set(id);
+                    order[--n] = id;
+                }
+            }
+        }
+        return new PermissionLayer(order, granted, denied);
+    }
+
+    boolean isEmpty() {
+        return order.length == 0;
+    }
+
+    /**
+     * Adds the ids of every node this layer sets, whatever the value.
+     */
+    void addIdsTo(BitSet ids) {
+        ids.or(granted);
+        ids.or(denied);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (!(o instanceof PermissionLayer)) {
+            return false;
+        }
+        PermissionLayer other = (PermissionLayer) o;
+        return Arrays.equals(order, other.order) && granted.equals(other.granted);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(order) + granted.hashCode();
+    }
+
+    /**
+     * Writes the layer for {@link SnapshotFile}: the number of nodes, then every id in
+     * order with its value in the lowest bit.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(order.length);
+        for (int id : order) {
+            out.writeInt(id << 1 | (granted.get(id) ? 1 : 0));
+        }
+    }
+
+    /**
+     * Reads a layer written by {@link #writeTo}.
+     *
+     * @param remap the id in the current table of every id in the file
+     */
+    static PermissionLayer readFrom(ByteBuffer in, int[] remap) {
+        int size = in.getInt();
+        if (size == 0) {
+            return EMPTY;
+        }
+
+        int[] order = new int[size];
+        BitSet granted = new BitSet(), denied = new BitSet();
+        for (int i = 0; i < size; ++i) {
+            int value = in.getInt();
+            int id = remap[value >>> 1];
+            order[i] = id;
+            if ((value & 1) != 0) {
+                granted.set(id);
+            } else {
+                denied.set(id);
+            }
+        }
+        return new PermissionLayer(order, granted, denied);
+    }
+
+    Map<String, Boolean> toMap(PermissionTable table) {
+        LinkedHashMap<String, Boolean> result = new LinkedHashMap<String, Boolean>();
+        for (int id : order) {
+            result.put(table.name(id), granted.get(id));
+        }
+        return result;
+    }
+
+}
\ No newline at end of file
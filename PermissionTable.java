@@ -0,0 +1,51 @@
+package me.bursty.ranks.main;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symbol table handing out dense int ids for permission nodes, so that layers can be
+ * stored and merged as bitsets. Ids are only valid for the model that created the table.
+ *
+ * <p>Interning happens on the main thread while snapshots are compiled; lookups are
+ * safe from any thread for ids that were published through a snapshot.
+ */
+final class PermissionTable {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] names = new String[256];
+    private int size = 0;
+
+    synchronized int intern(String node) {
+        Integer id = ids.get(node);
+        if (id != null) {
+            return id;
+        }
+
+        String[] array = names;
+        if (size == array.length) {
+            array = Arrays.copyOf(array, size * 2);
+        }
+        array[size] = node;
+        names = array;
+        ids.put(node, size);
+        return size++;
+    }
+
+    /**
+     * @return the id of the node, or -1 if it was never interned
+     */
+    int lookup(String node) {
+        Integer id = ids.get(node);
+        return id == null ? -1 : id;
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,80 @@
+package me.bursty.ranks.main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Character trie over the names of registered permissions, so that everything a
+ * wildcard node like {@code foo.*} covers can be listed without going through every
+ * registered permission. Names are lower-cased.
+ */
+final class PermissionTrie {
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] next = new Node[0];
+        private String name;
+
+        private Node child(char c) {
+            for (int i = 0; i < keys.length; ++i) {
+                if (keys[i] == c) {
+                    return next[i];
+                }
+            }
+            return null;
+        }
+
+        private Node addChild(char c) {
+            Node node = child(c);
+            if (node == null) {
+                int n = keys.length;
+                char[] newKeys = new char[n + 1];
+                Node[] newNext = new Node[n + 1];
+                System.arraycopy(keys, 0, newKeys, 0, n);
+                System.arraycopy(next, 0, newNext, 0, n);
+                newKeys[n] = c;
+                newNext[n] = node = new Node();
+                keys = newKeys;
+                next = newNext;
+            }
+            return node;
+        }
+    }
+
+    private final Node root = new Node();
+
+    void add(String name) {
+        String key = name.toLowerCase();
+        Node current = root;
+        for (int i = 0; i < key.length(); ++i) {
+            current = current.addChild(key.charAt(i));
+        }
+        current.name = key;
+    }
+
+    /**
+     * @param prefix lower-cased
+     * @return every name starting with the prefix, the prefix itself included
+     */
+    List<String> withPrefix(String prefix) {
+        Node current = root;
+        for (int i = 0; i < prefix.length() && current != null; ++i) {
+            current = current.child(prefix.charAt(i));
+        }
+        ArrayList<String> result = new ArrayList<String>();
+        if (current != null) {
+            collect(current, result);
+        }
+        return result;
+    }
+
+    private static void collect(Node node, List<String> result) {
+        if (node.name != null) {
+            result.add(node.name);
+        }
+        for (Node next : node.next) {
+            collect(next, result);
+        }
+    }
+
+}
\ No newline at end of file
@@ -31,15 +31,26 @@ final class PermissionsCommand implements CommandExecutor {
         }
 
         String subcommand = split[0];
+        if (!subcommand.equals("reload")) {
+            // commands work on config.yml, which is not parsed when starting from snapshot.bin
+            plugin.loadPendingConfig();
+        }
         if (subcommand.equals("reload")) {
             if (!checkPerm(sender, "reload")) return true;
+            PermissionsSnapshot previous = plugin.getSnapshot();
+            long start = System.nanoTime();
             plugin.reloadConfig();
             if (plugin.configLoadError) {
                 plugin.configLoadError = false;
                 sender.sendMessage("7>> cYour configuration is invalid, see the console for details.");
             } else {
-                plugin.refreshPermissions();
-                sender.sendMessage("7>> aConfiguration reloaded.");
+                long parsed = System.nanoTime();
+                SnapshotDiff diff = plugin.diffSnapshot(previous);
+                long diffed = System.nanoTime();
+                int touched = plugin.refreshForDiff(diff);
+                long applied = System.nanoTime();
+                sender.sendMessage("7>> aConfiguration reloaded, " + touched + " players updated.");
+                sender.sendMessage("7>> 3Parse " + "7" + (parsed - start) / 1000000 + " ms" + "3" + ", diff " + "7" + (diffed - parsed) / 1000000 + " ms" + "3" + ", apply " + "7" + (applied - diffed) / 1000000 + " ms" + "3" + ".");
             }
             return true;
         } else if (subcommand.equals("about")) {
@@ -257,23 +268,25 @@ final class PermissionsCommand implements CommandExecutor {
             }
 
             List<String> users = new LinkedList<String>();
-            for (String userKey : plugin.getNode("users").getKeys(false)) {
-                ConfigurationSection node = plugin.getNode("users/" + userKey);
+            PermissionsSnapshot snapshot = plugin.getSnapshot();
+            for (UUID uuid : plugin.getMembers(group)) {
+                // show UUID and name if available
+                PermissionsSnapshot.UserRecord user = snapshot.getUser(uuid);
+                String name = user != null && user.name != null ? user.name : "???";
+                users.add(name + "3" + " (" + "7" + uuid + "3" + ")");
+            }
+            for (ConfigurationSection node : plugin.getLegacyUserNodes()) {
                 if (node.getStringList("groups").contains(group)) {
-                    try {
-                        // show UUID and name if available
-                        UUID uuid = UUID.fromString(userKey);
-                        String name = node.getString("name", "???");
-                        users.add(name + "3" + " (" + "7" + uuid + "3" + ")");
-                    } catch (IllegalArgumentException ex) {
-                        users.add(userKey + "3" + " (" + "7" + "unconverted" + "3" + ")");
-                    }
+                    users.add(node.getName() + "3" + " (" + "7" + "unconverted" + "3" + ")");
                 }
             }
             sender.sendMessage("7>> 3" + "Users in " + "7" + group + "3" + " (" + "7" + users.size() + "3" + "):");
             for (String user : users) {
                 sender.sendMessage("  " + user);
             }
+            if (plugin.getUserStore() != null) {
+                sender.sendMessage("7>> 3" + "Only users loaded right now are listed, the others are in " + "7" + plugin.getUserStore().describe() + "3" + ".");
+            }
             return true;
         } else if (subcommand.equals("setperm")) {
             if (!checkPerm(sender, "group.setperm")) return true;
@@ -470,9 +483,16 @@ final class PermissionsCommand implements CommandExecutor {
                     "-" + arg.substring(16, 20) + "-" + arg.substring(20, 32);
         }
         if (arg.length() == 36) {
+            UUID uuid;
             try {
-                return UUID.fromString(arg);
+                uuid = UUID.fromString(arg);
             } catch (IllegalArgumentException ex) {
+                uuid = null;
+            }
+            if (uuid != null) {
+                // offline users may not be loaded when kept outside of config.yml
+                plugin.loadUser(uuid);
+                return uuid;
             }
         }
 
@@ -209,6 +209,27 @@ final class PermissionsMetrics {
         Metrics.Graph graph = metrics.createGraph("Usage");
         usage = graph;
 
+        graph.addPlotter(new Metrics.Plotter("Suppressed Build Messages") {
+            @Override
+            public int getValue() {
+                return plugin.getSuppressedBuildMessages();
+            }
+        });
+
+        graph.addPlotter(new Metrics.Plotter("Apply Queue Depth") {
+            @Override
+            public int getValue() {
+                return plugin.getApplyQueue().getDepth();
+            }
+        });
+
+        graph.addPlotter(new Metrics.Plotter("Apply Queue Drain Time") {
+            @Override
+            public int getValue() {
+                return plugin.getApplyQueue().getLastDrainMillis();
+            }
+        });
+
         graph.addPlotter(new Metrics.Plotter("Users") {
             @Override
             public int getValue() {
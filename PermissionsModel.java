@@ -0,0 +1,194 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.*;
+
+/**
+ * Case-insensitive index over the loaded configuration. It is compiled once per
+ * reload so that node, group and user lookups no longer walk every key in the tree;
+ * the YAML itself is only kept around as the storage format.
+ */
+final class PermissionsModel {
+
+    private final ConfigurationSection root;
+    private final PermissionTable table;
+
+    private final HashMap<String, ConfigurationSection> sections = new HashMap<String, ConfigurationSection>();
+    private final LinkedHashMap<String, ConfigurationSection> groups = new LinkedHashMap<String, ConfigurationSection>();
+    private final HashMap<UUID, ConfigurationSection> users = new HashMap<UUID, ConfigurationSection>();
+    // users still keyed by name from before the switch to UUIDs
+    private final LinkedHashMap<String, ConfigurationSection> legacyUsers = new LinkedHashMap<String, ConfigurationSection>();
+    // user sections by their stored name as written, and lower-cased for lookups in another case
+    private final HashMap<String, ConfigurationSection> names = new HashMap<String, ConfigurationSection>();
+    private final HashMap<String, ConfigurationSection> lowerNames = new HashMap<String, ConfigurationSection>();
+
+    PermissionsModel(ConfigurationSection root, PermissionTable table) {
+        this.root = root;
+        this.table = table;
+        for (String key : root.getKeys(false)) {
+            if (root.isConfigurationSection(key)) {
+                index(root.getConfigurationSection(key));
+            }
+        }
+    }
+
+    /**
+     * Registers a section and everything below it. Must be called for every section
+     * created after the model was compiled.
+     */
+    void index(ConfigurationSection section) {
+        String path = section.getCurrentPath().toLowerCase();
+        ConfigurationSection existing = sections.get(path);
+        if (existing != null && existing != section && isLive(existing)) {
+            // first key wins for entries that only differ in case, like the old scan did
+            return;
+        }
+        sections.put(path, section);
+
+        ConfigurationSection parent = section.getParent();
+        if (parent != null && parent.getParent() == root) {
+            String top = parent.getName().toLowerCase();
+            if (top.equals("groups")) {
+                groups.put(section.getName().toLowerCase(), section);
+            } else if (top.equals("users")) {
+                UUID uuid = parseUUID(section.getName());
+                if (uuid != null) {
+                    users.put(uuid, section);
+                } else {
+                    legacyUsers.put(section.getName().toLowerCase(), section);
+                    addName(section.getName(), section, false);
+                }
+                String name = section.getString("name");
+                if (name != null) {
+                    addName(name, section, false);
+                }
+            }
+        }
+
+        for (String key : section.getKeys(false)) {
+            if (section.isConfigurationSection(key)) {
+                index(section.getConfigurationSection(key));
+            }
+        }
+    }
+
+    PermissionTable getTable() {
+        return table;
+    }
+
+    ConfigurationSection getNode(String path) {
+        String key = path.toLowerCase();
+        ConfigurationSection section = sections.get(key);
+        if (section != null && !isLive(section)) {
+            sections.remove(key);
+            return null;
+        }
+        return section;
+    }
+
+    ConfigurationSection getGroupNode(String name) {
+        String key = name.toLowerCase();
+        ConfigurationSection section = groups.get(key);
+        if (section != null && !isLive(section)) {
+            groups.remove(key);
+            return null;
+        }
+        return section;
+    }
+
+    ConfigurationSection getUserNode(UUID uuid) {
+        ConfigurationSection section = users.get(uuid);
+        if (section != null && !isLive(section)) {
+            users.remove(uuid);
+            return null;
+        }
+        return section;
+    }
+
+    /**
+     * Looks a user up by the name stored for them, or by the key of a user that was never
+     * migrated. An exact match wins over one that only differs in case.
+     */
+    ConfigurationSection getUserNodeByName(String name) {
+        ConfigurationSection section = names.get(name);
+        if (section != null) {
+            if (isLive(section)) {
+                return section;
+            }
+            names.remove(name);
+        }
+
+        String key = name.toLowerCase();
+        section = lowerNames.get(key);
+        if (section != null && !isLive(section)) {
+            lowerNames.remove(key);
+            return null;
+        }
+        return section;
+    }
+
+    /**
+     * Must be called whenever the stored name of a user changes. The new name always
+     * wins, since whoever held it before has since been renamed themselves.
+     */
+    void rename(ConfigurationSection section, String oldName, String newName) {
+        if (oldName != null) {
+            if (names.get(oldName) == section) {
+                names.remove(oldName);
+            }
+            if (lowerNames.get(oldName.toLowerCase()) == section) {
+                lowerNames.remove(oldName.toLowerCase());
+            }
+        }
+        addName(newName, section, true);
+    }
+
+    private void addName(String name, ConfigurationSection section, boolean replace) {
+        ConfigurationSection existing = names.get(name);
+        if (replace || existing == null || !isLive(existing)) {
+            names.put(name, section);
+        }
+        existing = lowerNames.get(name.toLowerCase());
+        if (replace || existing == null || !isLive(existing)) {
+            lowerNames.put(name.toLowerCase(), section);
+        }
+    }
+
+    /**
+     * @return the sections of users that have not been migrated to a UUID key yet
+     */
+    List<ConfigurationSection> getLegacyUserNodes() {
+        ArrayList<ConfigurationSection> result = new ArrayList<ConfigurationSection>(legacyUsers.size());
+        Iterator<ConfigurationSection> it = legacyUsers.values().iterator();
+        while (it.hasNext()) {
+            ConfigurationSection section = it.next();
+            if (isLive(section)) {
+                result.add(section);
+            } else {
+                it.remove();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sections removed through {@code set(path, null)} are dropped lazily: an entry is
+     * only trusted while the tree still resolves its path to the very same object.
+     */
+    private boolean isLive(ConfigurationSection section) {
+        return root.getConfigurationSection(section.getCurrentPath()) == section;
+    }
+
+    static UUID parseUUID(String key) {
+        if (key.length() != 36) {
+            return null;
+        }
+        try {
+            return UUID.fromString(key);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+}
\ No newline at end of file
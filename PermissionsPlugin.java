@@ -1,11 +1,13 @@
 package me.bursty.ranks.main;
 
+import org.bukkit.ChatColor;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.permissions.PermissionAttachment;
+import org.bukkit.permissions.PermissionAttachmentInfo;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.util.FileUtil;
 
@@ -13,23 +15,53 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.lang.reflect.Field;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public final class PermissionsPlugin extends JavaPlugin {
 
+    // how long a precomputed login stays around when the player never joins
+    private static final long PRECOMPUTE_TIMEOUT = 60000;
+
     private final PlayerListener playerListener = new PlayerListener(this);
     private final PermissionsCommand commandExecutor = new PermissionsCommand(this);
     private final PermissionsTabComplete tabCompleter = new PermissionsTabComplete(this);
     private final PermissionsMetrics metrics = new PermissionsMetrics(this);
 
     private final HashMap<UUID, PermissionAttachment> permissions = new HashMap<UUID, PermissionAttachment>();
+    // kept across reloads so that layers of consecutive snapshots can be compared
+    private final PermissionTable table = new PermissionTable();
+    private final ConcurrentHashMap<UUID, PrecomputedPermissions> precomputed = new ConcurrentHashMap<UUID, PrecomputedPermissions>();
+    // users with a record by the groups stored for them, and registered players by the groups they resolve through
+    private volatile MembershipIndex members = new MembershipIndex();
+    private volatile MembershipIndex onlineMembers = new MembershipIndex();
+    private final HashMap<UUID, InjectedPermissible> injected = new HashMap<UUID, InjectedPermissible>();
+    // permissions.build of registered players as of their last calculation, unless something else decides it
+    private final HashMap<UUID, BuildFlag> buildFlags = new HashMap<UUID, BuildFlag>();
+    private final ApplyQueue applyQueue = new ApplyQueue(this);
 
     private File configFile;
     private YamlConfiguration config;
+    private PermissionsModel model;
+    private ConfigSaver saver;
+    private ConfigWatcher watcher;
+    // only set when users are kept outside of config.yml
+    private UserStore userStore;
+    private ConfigJournal journal;
+    // set while the groups and users come from snapshot.bin and config.yml was not parsed yet
+    private boolean configPending = false;
+    private boolean configParsing = false;
+    private volatile PermissionsSnapshot snapshot;
+    private long version = 0;
+    private String defaultWorld;
+    private PermissionExpander expander;
+    private boolean injectPermissible;
+    private String buildMessage;
+    private long buildMessageCooldown;
 
     public boolean configLoadError = false;
 
@@ -37,8 +69,44 @@ public final class PermissionsPlugin extends JavaPlugin {
 	@Override
     public void onEnable() {
         configFile = new File(getDataFolder(), "config.yml");
+        saver = new ConfigSaver(this, configFile);
+        expander = new PermissionExpander(getServer().getPluginManager());
         saveDefaultConfig();
-        reloadConfig();
+        boolean fromSnapshot = loadSnapshotFile();
+        if (!fromSnapshot) {
+            reloadConfig();
+        }
+        if (config.getBoolean("journal", false)) {
+            try {
+                journal = new ConfigJournal(this, new File(getDataFolder(), "journal.dat"), saver);
+            } catch (IOException ex) {
+                getLogger().log(Level.SEVERE, "Failed to open the journal, saving config.yml in full instead", ex);
+            }
+        }
+        if (journal != null) {
+            int replayed = journal.replay(config);
+            if (replayed > 0) {
+                getLogger().info("Replayed " + replayed + " changes from " + journal.getFile().getName());
+                compileConfig();
+                saveConfig();
+            }
+            journal.start();
+        }
+        UserStorage storage = createUserStorage(config.getString("user-storage", "yaml"));
+        if (storage != null) {
+            userStore = new UserStore(this, storage, config.getInt("user-cache-size", 1000));
+            int moved = userStore.migrate(config, configFile).size();
+            if (moved > 0) {
+                getLogger().info("Moved " + moved + " users from config.yml to " + userStore.describe());
+                compileConfig();
+                saveConfig();
+            }
+        }
+        if (!fromSnapshot) {
+            writeSnapshotFile(true);
+        }
+        defaultWorld = getServer().getWorlds().get(0).getName();
+        injectPermissible = config.getBoolean("inject-permissible", false);
 
         getCommand("permissions").setExecutor(commandExecutor);
         getCommand("permissions").setTabCompleter(tabCompleter);
@@ -47,6 +115,7 @@ public final class PermissionsPlugin extends JavaPlugin {
         for (Player p : getServer().getOnlinePlayers()) {
             registerPlayer(p);
         }
+        applyQueue.start();
 
         try {
             metrics.start();
@@ -69,64 +138,424 @@ public final class PermissionsPlugin extends JavaPlugin {
 
     @Override
     public void reloadConfig() {
+        configPending = false;
+        if (saver != null) {
+            // changes made by commands are written before the file is read back
+            saver.flush();
+            saver.await();
+        }
+        if (userStore != null) {
+            userStore.flush();
+        }
+        if (journal != null) {
+            // journaled changes count as written, so let them reach the disk first
+            journal.await();
+        }
+
+        YamlConfiguration previous = config;
         config = new YamlConfiguration();
         config.options().pathSeparator('/');
         try {
-            config.load(configFile);
+            ConfigLoader.load(configFile, config);
         } catch (InvalidConfigurationException ex) {
             configLoadError = true;
+            reportInvalidConfig(ex);
+        } catch (Exception ex) {
+            getLogger().log(Level.SEVERE, "Failed to load configuration", ex);
+        }
 
-            ArrayList<String> lines = new ArrayList<String>();
-            Pattern pattern = Pattern.compile("line (\\d+), column");
-            Matcher matcher = pattern.matcher(ex.getMessage());
-            while (matcher.find()) {
-                String lineNo = matcher.group(1);
-                if (!lines.contains(lineNo)) {
-                    lines.add(lineNo);
-                }
+        int replayed = journal == null ? 0 : journal.replay(config);
+        int moved = prepareUsers(config, previous);
+        compileConfig();
+        if (moved > 0 || replayed > 0) {
+            saveConfig();
+        }
+        if (!configLoadError) {
+            updateWatcher();
+        }
+    }
+
+    /**
+     * Logs the line numbers of a configuration error and keeps the full message and a
+     * copy of the broken file next to it.
+     */
+    protected void reportInvalidConfig(InvalidConfigurationException ex) {
+        ArrayList<String> lines = new ArrayList<String>();
+        Pattern pattern = Pattern.compile("line (\\d+), column");
+        Matcher matcher = pattern.matcher(ex.getMessage());
+        while (matcher.find()) {
+            String lineNo = matcher.group(1);
+            if (!lines.contains(lineNo)) {
+                lines.add(lineNo);
+            }
+        }
+
+        String msg = "Your configuration is invalid! ";
+        if (lines.size() == 0) {
+            msg += "Unable to find any line numbers.";
+        } else {
+            msg += "Take a look at line(s): " + lines.get(0);
+            for (String lineNo : lines.subList(1, lines.size())) {
+                msg += ", " + lineNo;
             }
+        }
+        getLogger().severe(msg);
+        
+        try {
+            File outFile = new File(getDataFolder(), "config_error.txt");
+            PrintStream out = new PrintStream(new FileOutputStream(outFile));
+            out.println();
+            out.println(ex.toString());
+            out.close();
+            getLogger().info("Saved the full error message to " + outFile);
+        } catch (IOException ex2) {
+            getLogger().severe("Failed to save the full error message!");
+        }
 
-            String msg = "Your configuration is invalid! ";
-            if (lines.size() == 0) {
-                msg += "Unable to find any line numbers.";
-            } else {
-                msg += "Take a look at line(s): " + lines.get(0);
-                for (String lineNo : lines.subList(1, lines.size())) {
-                    msg += ", " + lineNo;
+        File backupFile = new File(getDataFolder(), "config_backup.yml");
+        File sourceFile = new File(getDataFolder(), "config.yml");
+        if (FileUtil.copy(sourceFile, backupFile)) {
+            getLogger().info("Saved a backup of your configuration to " + backupFile);
+        } else {
+            getLogger().severe("Failed to save a configuration backup!");
+        }
+    }
+
+    private void compileConfig() {
+        model = new PermissionsModel(config, table);
+        PermissionsSnapshot compiled = compileSnapshot();
+
+        // in file order, for the membership index
+        LinkedHashMap<UUID, List<String>> groupLists = new LinkedHashMap<UUID, List<String>>();
+        ConfigurationSection usersNode = getNode("users");
+        if (usersNode != null) {
+            for (String key : usersNode.getKeys(false)) {
+                UUID uuid = PermissionsModel.parseUUID(key);
+                PermissionsSnapshot.UserRecord user = uuid == null ? null : compiled.getUser(uuid);
+                if (user != null) {
+                    groupLists.put(uuid, user.groups);
                 }
             }
-            getLogger().severe(msg);
-            
+        }
+        installSnapshot(compiled, groupLists);
+    }
+
+    /**
+     * Publishes the snapshot of a new configuration and rebuilds everything derived from it.
+     *
+     * @param groupLists the group list of every user with a record
+     */
+    private void installSnapshot(PermissionsSnapshot newSnapshot, Map<UUID, List<String>> groupLists) {
+        publish(newSnapshot);
+        precomputed.clear();
+        expander.invalidate();
+
+        String message = config.getString("messages/build", "");
+        buildMessage = message.length() > 0 ? ChatColor.translateAlternateColorCodes('&', message) : null;
+        buildMessageCooldown = config.getLong("build-message-cooldown", 1000);
+
+        // built aside and swapped in, so readers on other threads never see a half-built index
+        LinkedHashMap<UUID, List<String>> onlineGroupLists = new LinkedHashMap<UUID, List<String>>();
+        for (UUID uuid : permissions.keySet()) {
+            onlineGroupLists.put(uuid, snapshot.getUserGroups(uuid));
+        }
+        members = MembershipIndex.build(groupLists);
+        onlineMembers = MembershipIndex.build(onlineGroupLists);
+    }
+
+    /**
+     * Installs a configuration that was parsed off the main thread after config.yml was
+     * changed externally, recalculating only the players the change affects.
+     */
+    protected void applyExternalConfig(YamlConfiguration parsed) {
+        // the edit wins over changes that were not written yet
+        if (saver.cancel()) {
+            getLogger().warning("config.yml was changed externally before recent changes were saved, those changes are discarded");
+        }
+        saver.await();
+        if (userStore != null) {
+            // users are not in config.yml, so their changes are kept
+            userStore.flush();
+        }
+        PermissionsSnapshot previous = snapshot;
+        YamlConfiguration previousConfig = config;
+        config = parsed;
+        int replayed = journal == null ? 0 : journal.replay(config);
+        int moved = prepareUsers(config, previousConfig);
+        compileConfig();
+        if (moved > 0 || replayed > 0) {
+            saveConfig();
+        }
+        int touched = refreshForDiff(diffSnapshot(previous));
+        getLogger().info("Applied external changes to config.yml, " + touched + " players updated");
+        updateWatcher();
+    }
+
+    /**
+     * With users kept outside of config.yml, moves users that showed up in a freshly
+     * loaded config.yml to the user storage and puts the users that are currently
+     * loaded back into it, as they are in the configuration it replaces.
+     *
+     * @return the number of users moved out of config.yml
+     */
+    private int prepareUsers(YamlConfiguration loaded, YamlConfiguration previous) {
+        if (userStore == null) {
+            return 0;
+        }
+        Map<UUID, ConfigurationSection> moved = userStore.migrate(loaded, configFile);
+        userStore.fill(loaded, previous, moved);
+        return moved.size();
+    }
+
+    /**
+     * @return the storage users are kept in, or null to keep them in config.yml
+     */
+    private UserStorage createUserStorage(String type) {
+        if (type.equalsIgnoreCase("sharded")) {
+            return new YamlUserStorage(new File(getDataFolder(), "users"));
+        } else if (type.equalsIgnoreCase("sqlite")) {
             try {
-                File outFile = new File(getDataFolder(), "config_error.txt");
-                PrintStream out = new PrintStream(new FileOutputStream(outFile));
-                out.println();
-                out.println(ex.toString());
-                out.close();
-                getLogger().info("Saved the full error message to " + outFile);
-            } catch (IOException ex2) {
-                getLogger().severe("Failed to save the full error message!");
-            }
-
-            File backupFile = new File(getDataFolder(), "config_backup.yml");
-            File sourceFile = new File(getDataFolder(), "config.yml");
-            if (FileUtil.copy(sourceFile, backupFile)) {
-                getLogger().info("Saved a backup of your configuration to " + backupFile);
-            } else {
-                getLogger().severe("Failed to save a configuration backup!");
+                return new SqliteUserStorage(new File(getDataFolder(), "users.db"));
+            } catch (SQLException ex) {
+                getLogger().log(Level.SEVERE, "Failed to open the user database, keeping users in config.yml", ex);
+                return null;
             }
+        } else if (!type.equalsIgnoreCase("yaml")) {
+            getLogger().warning("Unknown user-storage " + type + ", keeping users in config.yml");
+        }
+        return null;
+    }
+
+    protected UserStore getUserStore() {
+        return userStore;
+    }
+
+    /**
+     * Loads a user that a command is about to read or change. When users are kept in
+     * config.yml, every user is always loaded.
+     */
+    protected void loadUser(UUID uuid) {
+        if (userStore != null) {
+            userStore.load(uuid);
+        }
+    }
+
+    protected void prefetchUser(UUID uuid) {
+        if (userStore != null) {
+            userStore.prefetch(uuid);
+        }
+    }
+
+    /**
+     * Puts a user read from the user storage into the configuration tree.
+     */
+    protected void attachUser(UUID uuid, ConfigurationSection data) {
+        ConfigurationSection sec = createNode("users/" + uuid);
+        copySection(data, sec);
+        model.index(sec);
+        recompileUser(uuid);
+    }
+
+    protected void detachUser(UUID uuid) {
+        getConfig().set("users/" + uuid, null);
+        recompileUser(uuid);
+    }
+
+    /**
+     * Saves a change to a user, touching only that user when users are kept outside of config.yml.
+     */
+    private void saveUser(UUID uuid) {
+        if (userStore != null) {
+            userStore.markDirty(uuid);
+        } else if (journal != null) {
+            journal.append("users/" + uuid, getNode("users/" + uuid));
+        } else {
+            saveConfig();
+        }
+    }
+
+    /**
+     * Saves a change to a group, only appending the group to the journal if it is enabled.
+     */
+    private void saveGroup(String group) {
+        if (journal != null) {
+            ConfigurationSection node = model.getGroupNode(group);
+            journal.append(node != null ? node.getCurrentPath() : "groups/" + group, node);
+        } else {
+            saveConfig();
+        }
+    }
+
+    /**
+     * Saves a change somewhere below a group or user like {@link #saveGroup} and
+     * {@link #saveUser} do, or the whole configuration if it is below neither.
+     */
+    private void saveNode(String path) {
+        String[] parts = path.split("/", 3);
+        UUID uuid = parts.length < 2 || !parts[0].equals("users") ? null : PermissionsModel.parseUUID(parts[1]);
+        if (uuid != null) {
+            saveUser(uuid);
+        } else if (journal != null && parts.length >= 2 && (parts[0].equals("users") || parts[0].equals("groups"))) {
+            String owner = parts[0] + "/" + parts[1];
+            journal.append(owner, getNode(owner));
+        } else {
+            saveConfig();
+        }
+    }
+
+    /**
+     * Starts from snapshot.bin if it was compiled from the current config.yml, so that
+     * config.yml does not have to be parsed at all. Until something needs the groups and
+     * users as configuration sections, only the settings are loaded; see
+     * {@link #loadPendingConfig}.
+     *
+     * @return whether the snapshot was used
+     */
+    private boolean loadSnapshotFile() {
+        SnapshotFile.Loaded loaded;
+        YamlConfiguration settings = new YamlConfiguration();
+        settings.options().pathSeparator('/');
+        try {
+            loaded = SnapshotFile.read(new File(getDataFolder(), "snapshot.bin"), configFile, ++version, getLogger(), table);
+            if (loaded == null) {
+                return false;
+            }
+            settings.loadFromString(loaded.settings);
         } catch (Exception ex) {
-            getLogger().log(Level.SEVERE, "Failed to load configuration", ex);
+            getLogger().log(Level.WARNING, "Failed to read snapshot.bin, loading config.yml instead", ex);
+            return false;
         }
+
+        config = settings;
+        model = new PermissionsModel(config, table);
+        installSnapshot(loaded.snapshot, loaded.groupLists);
+        configPending = true;
+        debug("Loaded " + loaded.snapshot.getGroups().size() + " groups from snapshot.bin");
+        return true;
     }
 
+    /**
+     * Parses config.yml right away after starting from snapshot.bin, for commands and
+     * lookups that need the configuration tree. Must be called from the main thread.
+     */
+    protected void loadPendingConfig() {
+        if (!configPending) {
+            return;
+        }
+        PermissionsSnapshot previous = snapshot;
+        reloadConfig();
+        refreshForDiff(diffSnapshot(previous));
+    }
+
+    /**
+     * Parses config.yml in the background after starting from snapshot.bin, for a joining
+     * player who may have to be migrated or renamed. They are recalculated once it is done.
+     */
+    private void parsePendingConfig() {
+        if (!configPending || configParsing) {
+            return;
+        }
+        configParsing = true;
+        debug("Parsing config.yml in the background");
+
+        getServer().getScheduler().runTaskAsynchronously(this, new Runnable() {
+            public void run() {
+                final YamlConfiguration parsed = new YamlConfiguration();
+                parsed.options().pathSeparator('/');
+                boolean success = true;
+                try {
+                    ConfigLoader.load(configFile, parsed);
+                } catch (Exception ex) {
+                    success = false;
+                }
+                final boolean parsedFully = success;
+                getServer().getScheduler().runTask(PermissionsPlugin.this, new Runnable() {
+                    public void run() {
+                        configParsing = false;
+                        if (!configPending) {
+                            // reloaded in the meantime
+                            return;
+                        } else if (!parsedFully) {
+                            // let a regular reload report what is wrong
+                            reloadConfig();
+                            return;
+                        }
+                        configPending = false;
+                        config = parsed;
+                        compileConfig();
+                        refreshPermissions();
+                        updateWatcher();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes snapshot.bin for the next start, if it is enabled and config.yml holds every
+     * group and user.
+     */
+    private void writeSnapshotFile(boolean async) {
+        if (!config.getBoolean("binary-snapshot", false) || journal != null || userStore != null || configPending || configLoadError) {
+            return;
+        }
+
+        YamlConfiguration settings = new YamlConfiguration();
+        settings.options().pathSeparator('/');
+        PermissionsPlugin.copySection(config, settings);
+        settings.set("groups", null);
+        settings.set("users", null);
+        final String data = settings.saveToString();
+        final PermissionsSnapshot current = snapshot;
+        final File file = new File(getDataFolder(), "snapshot.bin");
+        final SnapshotFile.Source source;
+        try {
+            // taken along with the snapshot, as config.yml may change before the write
+            source = SnapshotFile.Source.of(configFile);
+        } catch (IOException ex) {
+            getLogger().log(Level.WARNING, "Failed to read " + configFile + ", not writing " + file, ex);
+            return;
+        }
+
+        Runnable write = new Runnable() {
+            public void run() {
+                try {
+                    SnapshotFile.write(file, current, data, source);
+                } catch (IOException ex) {
+                    getLogger().log(Level.WARNING, "Failed to write " + file, ex);
+                }
+            }
+        };
+        if (async) {
+            getServer().getScheduler().runTaskAsynchronously(this, write);
+        } else {
+            write.run();
+        }
+    }
+
+    private void updateWatcher() {
+        boolean enabled = config.getBoolean("watch-config", false);
+        if (enabled && watcher == null) {
+            watcher = new ConfigWatcher(this, configFile, saver);
+            watcher.start();
+        } else if (!enabled && watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Schedules a write-behind save; see {@link ConfigSaver}. With the journal enabled,
+     * this folds the journal into config.yml instead.
+     */
     @Override
     public void saveConfig() {
-        if (config.getKeys(true).size() > 0) {
-            try {
-                config.save(configFile);
-            } catch (IOException ex) {
-                getLogger().log(Level.SEVERE, "Failed to save configuration", ex);
+        // while only the settings are loaded, there is nothing that could be saved
+        if (config.getKeys(false).size() > 0 && !configPending) {
+            if (journal != null) {
+                journal.compact();
+            } else {
+                saver.markDirty();
             }
         }
     }
@@ -134,9 +563,23 @@ public final class PermissionsPlugin extends JavaPlugin {
     @SuppressWarnings("deprecation")
 	@Override
     public void onDisable() {
+        applyQueue.stop();
         for (Player p : getServer().getOnlinePlayers()) {
             unregisterPlayer(p);
         }
+        playerListener.clearCooldowns();
+        if (journal != null) {
+            journal.close();
+        }
+        saver.flush();
+        writeSnapshotFile(false);
+        if (userStore != null) {
+            userStore.close();
+        }
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
 
         int count = getServer().getOnlinePlayers().length;
         if (count > 0) {
@@ -144,14 +587,14 @@ public final class PermissionsPlugin extends JavaPlugin {
         }
     }
 
+    // the methods below are served from the published snapshot and are safe to call from any thread,
+    // except for the deprecated lookups by name
+
     public Group getGroup(String groupName) {
         metrics.apiUsed();
-        if (getNode("groups") != null) {
-            for (String key : getNode("groups").getKeys(false)) {
-                if (key.equalsIgnoreCase(groupName)) {
-                    return new Group(this, key);
-                }
-            }
+        PermissionsSnapshot.GroupRecord group = snapshot.getGroup(groupName);
+        if (group != null) {
+            return new Group(this, group.name);
         }
         return null;
     }
@@ -159,6 +602,7 @@ public final class PermissionsPlugin extends JavaPlugin {
     @Deprecated
     public List<Group> getGroups(String playerName) {
         metrics.apiUsed();
+        loadPendingConfig();
         ArrayList<Group> result = new ArrayList<Group>();
         ConfigurationSection node = getUsernameNode(playerName);
         if (node != null) {
@@ -174,12 +618,9 @@ public final class PermissionsPlugin extends JavaPlugin {
     public List<Group> getGroups(UUID player) {
         metrics.apiUsed();
         ArrayList<Group> result = new ArrayList<Group>();
-        if (getNode("users/" + player) != null) {
-            for (String key : getNode("users/" + player).getStringList("groups")) {
-                result.add(new Group(this, key));
-            }
-        } else {
-            result.add(new Group(this, "default"));
+        PermissionsSnapshot.UserRecord user = lookupUser(snapshot, player);
+        for (String key : user == null ? snapshot.getUserGroups(player) : user.groups) {
+            result.add(new Group(this, key));
         }
         return result;
     }
@@ -187,34 +628,105 @@ public final class PermissionsPlugin extends JavaPlugin {
     @Deprecated
     public PermissionInfo getPlayerInfo(String playerName) {
         metrics.apiUsed();
+        loadPendingConfig();
         ConfigurationSection node = getUsernameNode(playerName);
         if (node == null) {
             return null;
-        } else {
-            return new PermissionInfo(this, node, "groups");
         }
+        UUID uuid = PermissionsModel.parseUUID(node.getName());
+        PermissionsSnapshot current = snapshot;
+        PermissionsSnapshot.UserRecord user = uuid == null ? null : current.getUser(uuid);
+        // users that were never migrated have no record, so compile one on the spot
+        return new PermissionInfo(this, current, user != null ? user : compileUser(uuid, node));
     }
 
 
     public PermissionInfo getPlayerInfo(UUID player) {
         metrics.apiUsed();
-        if (getNode("users/" + player) == null) {
+        PermissionsSnapshot current = snapshot;
+        PermissionsSnapshot.UserRecord user = lookupUser(current, player);
+        if (user == null) {
             return null;
         } else {
-            return new PermissionInfo(this, getNode("users/" + player), "groups");
+            return new PermissionInfo(this, current, user);
         }
     }
+
+    /**
+     * @return the user's record, read from the user storage if they are not loaded
+     */
+    private PermissionsSnapshot.UserRecord lookupUser(PermissionsSnapshot current, UUID uuid) {
+        PermissionsSnapshot.UserRecord user = current.getUser(uuid);
+        if (user == null && userStore != null) {
+            user = userStore.peek(uuid);
+        }
+        return user;
+    }
     public List<Group> getAllGroups() {
         metrics.apiUsed();
         ArrayList<Group> result = new ArrayList<Group>();
-        if (getNode("groups") != null) {
-            for (String key : getNode("groups").getKeys(false)) {
-                result.add(new Group(this, key));
-            }
+        for (PermissionsSnapshot.GroupRecord group : snapshot.getGroups()) {
+            result.add(new Group(this, group.name));
         }
         return result;
     }
 
+    /**
+     * permissions.build as decided when a player's permissions were last calculated, along
+     * with the entry Bukkit calculated for it then.
+     */
+    private static final class BuildFlag {
+        final boolean allowed;
+        final PermissionAttachmentInfo info;
+
+        BuildFlag(boolean allowed, PermissionAttachmentInfo info) {
+            this.allowed = allowed;
+            this.info = info;
+        }
+    }
+
+    /**
+     * Anti-build decision for the block listeners. Registered players are answered from
+     * the flag set when their permissions were last calculated, as long as nothing has
+     * recalculated them since, such as another plugin changing its attachment. Otherwise
+     * the flag is checked again with hasPermission.
+     */
+    protected boolean canBuild(Player player) {
+        BuildFlag flag = buildFlags.get(player.getUniqueId());
+        if (flag == null) {
+            return player.hasPermission("permissions.build");
+        }
+        PermissionAttachmentInfo info = PermissibleAccess.getInfo(player, "permissions.build");
+        if (info != null && info == flag.info) {
+            return flag.allowed;
+        }
+        boolean allowed = player.hasPermission("permissions.build");
+        buildFlags.put(player.getUniqueId(), new BuildFlag(allowed, info));
+        return allowed;
+    }
+
+    /**
+     * @return the translated anti-build message, or null if none is configured
+     */
+    protected String getBuildMessage() {
+        return buildMessage;
+    }
+
+    /**
+     * @return milliseconds between two anti-build messages to the same player
+     */
+    protected long getBuildMessageCooldown() {
+        return buildMessageCooldown;
+    }
+
+    protected int getSuppressedBuildMessages() {
+        return playerListener.getSuppressedMessages();
+    }
+
+    protected ApplyQueue getApplyQueue() {
+        return applyQueue;
+    }
+
     protected PermissionsMetrics getMetrics() {
         return metrics;
     }
@@ -224,8 +736,22 @@ public final class PermissionsPlugin extends JavaPlugin {
             debug("Registering " + player.getName() + ": was already registered");
             unregisterPlayer(player);
         }
+        loadUser(player.getUniqueId());
+        if (injectPermissible) {
+            try {
+                injected.put(player.getUniqueId(), InjectedPermissible.inject(player));
+            } catch (ReflectiveOperationException ex) {
+                getLogger().log(Level.SEVERE, "Failed to inject permissible into " + player.getName() + ", falling back to attachments", ex);
+                injectPermissible = false;
+            }
+        }
         PermissionAttachment attachment = player.addAttachment(this);
         permissions.put(player.getUniqueId(), attachment);
+        InjectedPermissible permissible = injected.get(player.getUniqueId());
+        if (permissible != null) {
+            permissible.setAttachment(attachment);
+        }
+        onlineMembers.put(player.getUniqueId(), snapshot.getUserGroups(player.getUniqueId()));
         calculateAttachment(player);
     }
 
@@ -237,14 +763,29 @@ public final class PermissionsPlugin extends JavaPlugin {
                 debug("Unregistering " + player.getName() + ": player did not have attachment");
             }
             permissions.remove(player.getUniqueId());
+            onlineMembers.remove(player.getUniqueId());
+            buildFlags.remove(player.getUniqueId());
+
+            InjectedPermissible permissible = injected.remove(player.getUniqueId());
+            if (permissible != null) {
+                try {
+                    permissible.uninject();
+                } catch (ReflectiveOperationException ex) {
+                    getLogger().log(Level.WARNING, "Failed to restore the permissible of " + player.getName(), ex);
+                }
+            }
+            if (userStore != null) {
+                userStore.release(player.getUniqueId());
+            }
         } else {
             debug("Unregistering " + player.getName() + ": was not registered");
         }
     }
 
     protected void refreshForPlayer(UUID player) {
-        saveConfig();
+        saveUser(player);
         debug("Refreshing for player " + player);
+        recompileUser(player);
 
         Player onlinePlayer = getServer().getPlayer(player);
         if (onlinePlayer != null) {
@@ -252,74 +793,197 @@ public final class PermissionsPlugin extends JavaPlugin {
         }
     }
 
-    private void fillChildGroups(HashSet<String> childGroups, String group) {
-        if (childGroups.contains(group)) return;
-        childGroups.add(group);
+    protected void refreshForGroup(String group) {
+        saveGroup(group);
 
-        for (String key : getNode("groups").getKeys(false)) {
-            for (String parent : getNode("groups/" + key).getStringList("inheritance")) {
-                if (parent.equalsIgnoreCase(group)) {
-                    fillChildGroups(childGroups, key);
-                }
+        // a changed parent list can only shift edges dropped for cycles, but take both versions
+        HashSet<String> childGroups = new HashSet<String>(snapshot.getGraph().getDescendants(group));
+        recompileGroup(group, childGroups);
+        childGroups.addAll(snapshot.getGraph().getDescendants(group));
+        debug("Refreshing for group " + group + " (total " + childGroups.size() + " subgroups)");
+
+        HashSet<UUID> affected = new HashSet<UUID>();
+        for (String child : childGroups) {
+            affected.addAll(onlineMembers.get(child));
+        }
+        ArrayList<Player> players = new ArrayList<Player>(affected.size());
+        for (UUID uuid : affected) {
+            Player player = getServer().getPlayer(uuid);
+            if (player != null) {
+                players.add(player);
             }
         }
+        recalculate(players);
     }
 
-    protected void refreshForGroup(String group) {
-        saveConfig();
+    /**
+     * Recalculates many players at once, resolving them in parallel. Results go through
+     * the apply queue unless its budget is turned off.
+     */
+    private void recalculate(List<Player> players) {
+        if (players.isEmpty()) {
+            return;
+        }
+        if (config.getLong("apply-budget", 5) <= 0) {
+            applyQueue.applyNow(players);
+        } else {
+            applyQueue.schedule(players);
+        }
+    }
 
-        HashSet<String> childGroups = new HashSet<String>();
-        fillChildGroups(childGroups, group);
-        debug("Refreshing for group " + group + " (total " + childGroups.size() + " subgroups)");
+    /**
+     * @return users whose stored group list contains the group, in file order. With a
+     * user storage only the users loaded right now are known, so the rest are missing.
+     */
+    protected Set<UUID> getMembers(String group) {
+        return members.getInOrder(group);
+    }
+
+    /**
+     * @return registered players resolving through the group, including those only in
+     * the default group because they have no record
+     */
+    protected Set<UUID> getOnlineMembers(String group) {
+        return onlineMembers.get(group);
+    }
+
+    protected List<ConfigurationSection> getLegacyUserNodes() {
+        // users by name are not in snapshot.bin
+        loadPendingConfig();
+        return model.getLegacyUserNodes();
+    }
+
+    protected PermissionsSnapshot getSnapshot() {
+        return snapshot;
+    }
 
+    /**
+     * Compares the current snapshot with one published before a reload, carrying over
+     * the caches of everything that did not change.
+     */
+    protected SnapshotDiff diffSnapshot(PermissionsSnapshot previous) {
+        SnapshotDiff diff = SnapshotDiff.between(previous, snapshot);
+        snapshot.adoptCaches(previous, diff);
+        debug("Reload changed " + diff.getChangedGroups() + " groups (including subgroups) and " + diff.getChangedUsers() + " users");
+        return diff;
+    }
+
+    /**
+     * Recalculates the online players whose resolution inputs changed.
+     *
+     * @return the number of players recalculated
+     */
+    protected int refreshForDiff(SnapshotDiff diff) {
+        if (diff.isEmpty()) {
+            return 0;
+        }
+        ArrayList<Player> players = new ArrayList<Player>();
         for (UUID uuid : permissions.keySet()) {
             Player player = getServer().getPlayer(uuid);
-            ConfigurationSection node = getUserNode(player);
+            if (player != null && diff.affectsPlayer(uuid, player.getWorld().getName())) {
+                players.add(player);
+            }
+        }
+        recalculate(players);
+        return players.size();
+    }
 
-            List<String> groupList = (node != null) ? node.getStringList("groups") : Arrays.asList("default");
-            for (String userGroup : groupList) {
-                if (childGroups.contains(userGroup)) {
-                    calculateAttachment(player);
-                    break;
-                }
+    /**
+     * Expands the permissions of injected players again after plugins were enabled or
+     * disabled, since the permissions they register come and go with them. Everyone else
+     * only needs it if wildcards were expanded into registered permissions.
+     */
+    protected void refreshExpanded() {
+        Set<UUID> uuids = expander.invalidateRegistered() ? permissions.keySet() : injected.keySet();
+        ArrayList<Player> players = new ArrayList<Player>(uuids.size());
+        for (UUID uuid : uuids) {
+            Player player = getServer().getPlayer(uuid);
+            if (player != null) {
+                players.add(player);
             }
         }
+        recalculate(players);
     }
 
     protected void refreshPermissions() {
         debug("Refreshing all permissions (for " + permissions.size() + " players)");
-        for (UUID player : permissions.keySet()) {
-            calculateAttachment(getServer().getPlayer(player));
+        ArrayList<Player> players = new ArrayList<Player>(permissions.size());
+        for (UUID uuid : permissions.keySet()) {
+            Player player = getServer().getPlayer(uuid);
+            if (player != null) {
+                players.add(player);
+            }
+        }
+        recalculate(players);
+        if (getConfig().getBoolean("debug", false)) {
+            debug(sharingStats());
         }
     }
 
-    protected ConfigurationSection getNode(String node) {
-        for (String entry : getConfig().getKeys(true)) {
-            if (node.equalsIgnoreCase(entry) && getConfig().isConfigurationSection(entry)) {
-                return getConfig().getConfigurationSection(entry);
-            }
+    private String sharingStats() {
+        IdentityHashMap<Map<String, Boolean>, Integer> holders = new IdentityHashMap<Map<String, Boolean>, Integer>();
+        for (PermissionAttachment attachment : permissions.values()) {
+            Map<String, Boolean> map = AttachmentAccess.getMap(attachment);
+            Integer count = holders.get(map);
+            holders.put(map, count == null ? 1 : count + 1);
         }
-        return null;
+
+        long savedEntries = 0;
+        for (Map.Entry<Map<String, Boolean>, Integer> entry : holders.entrySet()) {
+            savedEntries += (long) entry.getKey().size() * (entry.getValue() - 1);
+        }
+
+        int sharedHits = snapshot.getSharedHits();
+        int lookups = sharedHits + snapshot.getSharedMisses();
+        return "Shared permission maps: " + holders.size() + " distinct for " + permissions.size() + " players, "
+                + savedEntries + " entries deduplicated (~" + (savedEntries * 40 / 1024) + " KiB), hit rate "
+                + (lookups == 0 ? 0 : 100 * sharedHits / lookups) + "% of " + lookups + " lookups";
+    }
+
+    protected ConfigurationSection getNode(String node) {
+        return model.getNode(node);
     }
 
     protected ConfigurationSection getUserNode(Player player) {
-        ConfigurationSection sec = getNode("users/" + player.getUniqueId());
+        if (configPending) {
+            PermissionsSnapshot.UserRecord user = snapshot.getUser(player.getUniqueId());
+            if (user != null && player.getName().equals(user.name)) {
+                // nothing to migrate or rename, so config.yml is still not needed
+                return null;
+            }
+            parsePendingConfig();
+            return null;
+        }
+        ConfigurationSection sec = model.getUserNode(player.getUniqueId());
         if (sec == null) {
-            sec = getNode("users/" + player.getName());
-            if (sec != null) {
-                getConfig().set(sec.getCurrentPath(), null);
-                getConfig().set("users/" + player.getUniqueId(), sec);
+            ConfigurationSection old = getNode("users/" + player.getName());
+            if (old != null) {
+                String oldPath = old.getCurrentPath();
+                sec = getConfig().createSection("users/" + player.getUniqueId());
+                copySection(old, sec);
+                getConfig().set(oldPath, null);
+                model.index(sec);
+                model.rename(sec, sec.getString("name"), player.getName());
                 sec.set("name", player.getName());
                 debug("Migrated " + player.getName() + " to UUID " + player.getUniqueId());
-                saveConfig();
+                // users by name stay in config.yml even when users by UUID are kept elsewhere
+                if (journal != null) {
+                    journal.append(oldPath, null);
+                } else if (userStore != null) {
+                    saveConfig();
+                }
+                saveUser(player.getUniqueId());
+                recompileUser(player.getUniqueId());
             }
         }
 
         if (sec != null) {
             if (!player.getName().equals(sec.getString("name"))) {
                 debug("Updating name of " + player.getUniqueId() + " to: " + player.getName());
+                model.rename(sec, sec.getString("name"), player.getName());
                 sec.set("name", player.getName());
-                saveConfig();
+                saveUser(player.getUniqueId());
+                recompileUser(player.getUniqueId());
             }
         }
 
@@ -327,16 +991,7 @@ public final class PermissionsPlugin extends JavaPlugin {
     }
 
     protected ConfigurationSection getUsernameNode(String name) {
-        ConfigurationSection sec = getNode("users");
-        if (sec != null) {
-            for (String child : sec.getKeys(false)) {
-                ConfigurationSection node = sec.getConfigurationSection(child);
-                if (node != null && (name.equals(node.getString("name")) || name.equals("child"))) {
-                    return node;
-                }
-            }
-        }
-        return null;
+        return model.getUserNodeByName(name);
     }
 
     protected ConfigurationSection createNode(String node) {
@@ -345,12 +1000,24 @@ public final class PermissionsPlugin extends JavaPlugin {
             ConfigurationSection sec2 = getNode(sec == getConfig() ? piece : sec.getCurrentPath() + "/" + piece);
             if (sec2 == null) {
                 sec2 = sec.createSection(piece);
+                model.index(sec2);
             }
             sec = sec2;
         }
         return sec;
     }
 
+    static void copySection(ConfigurationSection from, ConfigurationSection to) {
+        for (String key : from.getKeys(false)) {
+            if (from.isConfigurationSection(key)) {
+                copySection(from.getConfigurationSection(key), to.createSection(key));
+            } else {
+                Object value = from.get(key);
+                to.set(key, value instanceof List ? new ArrayList<Object>((List<?>) value) : value);
+            }
+        }
+    }
+
     protected HashMap<String, Boolean> getAllPerms(String desc, String path) {
         ConfigurationSection node = getNode(path);
 
@@ -373,7 +1040,7 @@ public final class PermissionsPlugin extends JavaPlugin {
         }
         if (fixed) {
             getLogger().info("Fixed broken nesting in " + desc + ".");
-            saveConfig();
+            saveNode(path);
         }
 
         LinkedHashMap<String, Boolean> result = new LinkedHashMap<String, Boolean>();
@@ -413,99 +1080,321 @@ public final class PermissionsPlugin extends JavaPlugin {
             return;
         }
 
-        Map<String, Boolean> values = calculatePlayerPermissions(player, player.getWorld().getName());
+        applyPermissions(player, attachment, calculatePlayerPermissions(player, player.getWorld().getName()));
+        updateBuildFlag(player);
+    }
+
+    /**
+     * Installs permissions resolved off the main thread, see {@link ApplyQueue}.
+     */
+    protected void applyResolved(Player player, Map<String, Boolean> values) {
+        PermissionAttachment attachment = permissions.get(player.getUniqueId());
+        if (attachment == null) {
+            return;
+        }
+        applyPermissions(player, attachment, values);
+        updateBuildFlag(player);
+    }
+
+    /**
+     * Moves a player's permissions from one world to the one they are in now. Only nodes
+     * set by a world layer of either world can differ, so when there are none nothing is
+     * recalculated.
+     */
+    protected void calculateWorldChange(Player player, String from) {
+        PermissionAttachment attachment = permissions.get(player.getUniqueId());
+        if (attachment == null || injected.containsKey(player.getUniqueId())) {
+            // swapping the injected permissions is as cheap as it gets already
+            calculateAttachment(player);
+            return;
+        }
 
-        Map<String, Boolean> dest = reflectMap(attachment);
-        dest.clear();
-        dest.putAll(values);
-        debug("Calculated permissions on " + player.getName() + ": " + dest.size() + " values");
+        String to = player.getWorld().getName();
+        PermissionsSnapshot current = snapshot;
+        BitSet changed = current.getWorldOverlay(player.getUniqueId(), from);
+        changed.or(current.getWorldOverlay(player.getUniqueId(), to));
+        if (changed.isEmpty()) {
+            debug("Calculated permissions on " + player.getName() + " moving from " + from + " to " + to + ": no per-world nodes");
+            return;
+        }
 
-        player.recalculatePermissions();
+        // per-world nodes can move within the resolved order, so the delta takes care of
+        // putting them where a fresh calculation would
+        debug("Calculating permissions on " + player.getName() + " moving from " + from + " to " + to + ": " + changed.cardinality() + " per-world nodes");
+        applyPermissions(player, attachment, calculatePlayerPermissions(player, to));
+        updateBuildFlag(player);
     }
 
-    private Field pField;
+    private void updateBuildFlag(Player player) {
+        // decided once here so the block listeners do not have to check on every event
+        if (injected.containsKey(player.getUniqueId())) {
+            // answered in one lookup by the permissible anyway
+            buildFlags.remove(player.getUniqueId());
+        } else {
+            buildFlags.put(player.getUniqueId(), new BuildFlag(player.hasPermission("permissions.build"),
+                    PermissibleAccess.getInfo(player, "permissions.build")));
+        }
+    }
 
-    @SuppressWarnings("unchecked")
-    private Map<String, Boolean> reflectMap(PermissionAttachment attachment) {
-        try {
-            if (pField == null) {
-                pField = PermissionAttachment.class.getDeclaredField("permissions");
-                pField.setAccessible(true);
+    private void applyPermissions(Player player, PermissionAttachment attachment, Map<String, Boolean> values) {
+        InjectedPermissible permissible = injected.get(player.getUniqueId());
+        if (permissible != null) {
+            // the attachment stays empty, checks are answered by the permissible directly
+            PermissionExpander.Expanded expanded = expander.expand(values, !(values instanceof LinkedHashMap));
+            if (permissible.getValues() == expanded) {
+                debug("Calculated permissions on " + player.getName() + ": unchanged");
+            } else {
+                permissible.setValues(expanded);
+                debug("Calculated permissions on " + player.getName() + ": " + expanded.values.size() + " values including children, "
+                        + (expanded.wildcards == null ? 0 : expanded.wildcards.size()) + " wildcards");
             }
-            return (Map<String, Boolean>) pField.get(attachment);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            return;
         }
+
+        values = expander.expandWildcards(values, !(values instanceof LinkedHashMap));
+        Map<String, Boolean> dest = AttachmentAccess.getMap(attachment);
+
+        if (dest == values || equalInOrder(dest, values)) {
+            debug("Calculated permissions on " + player.getName() + ": unchanged");
+            return;
+        }
+
+        if (values instanceof LinkedHashMap && dest instanceof LinkedHashMap) {
+            // both private to this player, so only touch what differs
+            int changed = applyDelta(dest, values);
+            debug("Calculated permissions on " + player.getName() + ": " + values.size() + " values, " + changed + " changed");
+        } else {
+            // shared maps are installed as-is, behind a copy-on-write view
+            AttachmentAccess.setMap(attachment, values);
+            debug("Calculated permissions on " + player.getName() + ": " + values.size() + " values");
+        }
+
+        player.recalculatePermissions();
     }
 
-    private <K, V> void put(Map<K, V> dest, K key, V value) {
-        dest.remove(key);
-        dest.put(key, value);
+    /**
+     * Compares two permission maps including their order, which matters because later
+     * entries override children set by earlier ones.
+     */
+    private static boolean equalInOrder(Map<String, Boolean> a, Map<String, Boolean> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        Iterator<Map.Entry<String, Boolean>> it = b.entrySet().iterator();
+        for (Map.Entry<String, Boolean> entry : a.entrySet()) {
+            if (!entry.equals(it.next())) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private <K, V> void putAll(Map<K, V> dest, Map<K, V> src) {
-        for (Map.Entry<K, V> entry : src.entrySet()) {
-            put(dest, entry.getKey(), entry.getValue());
+    /**
+     * @return whether the keys both maps share are in the same order, and the keys only
+     * in the new values all come after them, so that an update in place keeps the order
+     */
+    private static boolean keepsOrder(Map<String, Boolean> dest, Map<String, Boolean> values) {
+        Iterator<String> existing = dest.keySet().iterator();
+        boolean appending = false;
+        for (String key : values.keySet()) {
+            if (!dest.containsKey(key)) {
+                appending = true;
+                continue;
+            }
+            String next = null;
+            while (existing.hasNext() && next == null) {
+                String candidate = existing.next();
+                if (values.containsKey(candidate)) {
+                    next = candidate;
+                }
+            }
+            if (appending || !key.equals(next)) {
+                return false;
+            }
         }
+        return true;
     }
 
-    private Map<String, Boolean> calculatePlayerPermissions(Player player, String world) {
-        ConfigurationSection node = getUserNode(player);
-       
-        if (node == null) {
-            return calculateGroupPermissions("default", world);
+    private int applyDelta(Map<String, Boolean> dest, Map<String, Boolean> values) {
+        if (!keepsOrder(dest, values)) {
+            dest.clear();
+            dest.putAll(values);
+            return values.size();
         }
 
-        String nodePath = node.getCurrentPath();
-        Map<String, Boolean> perms = new LinkedHashMap<String, Boolean>();
+        int changed = 0;
+        Iterator<String> it = dest.keySet().iterator();
+        while (it.hasNext()) {
+            if (!values.containsKey(it.next())) {
+                it.remove();
+                ++changed;
+            }
+        }
+        for (Map.Entry<String, Boolean> entry : values.entrySet()) {
+            if (!entry.getValue().equals(dest.get(entry.getKey()))) {
+                dest.put(entry.getKey(), entry.getValue());
+                ++changed;
+            }
+        }
+        return changed;
+    }
 
-        for (String group : node.getStringList("groups")) {
-            putAll(perms, calculateGroupPermissions(group, world));
+    private Map<String, Boolean> calculatePlayerPermissions(Player player, String world) {
+        // may migrate the user or update the stored name, publishing a new snapshot
+        getUserNode(player);
+
+        PermissionsSnapshot current = snapshot;
+        PrecomputedPermissions pre = precomputed.remove(player.getUniqueId());
+        // changes to other users do not matter, so only the groups and this user are compared
+        if (pre != null && pre.groupsVersion == current.getGroupsVersion() && pre.world.equals(world)
+                && sameUser(pre.user, current.getUser(player.getUniqueId()))) {
+            debug("Using permissions of " + player.getName() + " precomputed at login");
+            return pre.values;
         }
 
-        if (getNode(nodePath + "/permissions") != null) {
-            putAll(perms, getAllPerms("user " + player, nodePath + "/permissions"));
+        return current.resolve(player.getUniqueId(), world);
+    }
+
+    static boolean sameUser(PermissionsSnapshot.UserRecord a, PermissionsSnapshot.UserRecord b) {
+        return a == null ? b == null : b != null && (a == b || a.resolvesLike(b));
+    }
+
+    /**
+     * Resolves a joining player's permissions for the default world ahead of the join.
+     * Called from the async pre-login thread, so only the published snapshot is used,
+     * along with what {@link #prefetchUser} read for users that are not loaded yet.
+     */
+    protected void precompute(UUID player) {
+        PermissionsSnapshot current = snapshot;
+        PermissionsSnapshot.UserRecord user = current.getUser(player);
+        if (user == null && userStore != null) {
+            user = userStore.getPrefetched(player);
         }
 
-        if (getNode(nodePath + "/worlds/" + world) != null) {
-            putAll(perms, getAllPerms("user " + player + " world " + world, nodePath + "/worlds/" + world));
+        long now = System.currentTimeMillis();
+        // logins that were given up on without a login event are left behind otherwise
+        Iterator<PrecomputedPermissions> it = precomputed.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().created > PRECOMPUTE_TIMEOUT) {
+                it.remove();
+            }
         }
 
-        return perms;
+        Map<String, Boolean> values = current.resolve(user, defaultWorld);
+        precomputed.put(player, new PrecomputedPermissions(current.getGroupsVersion(), user, defaultWorld, values, now));
     }
 
-    private Map<String, Boolean> calculateGroupPermissions(String group, String world) {
-        return calculateGroupPermissions0(new HashSet<String>(), group, world);
+    /**
+     * Drops what was prepared at pre-login for a login that was denied.
+     */
+    protected void discardPrecomputed(UUID player) {
+        precomputed.remove(player);
+        if (userStore != null) {
+            userStore.discardPrefetched(player);
+        }
     }
 
-    private Map<String, Boolean> calculateGroupPermissions0(Set<String> recursionBuffer, String group, String world) {
-        String groupNode = "groups/" + group;
+    private void publish(PermissionsSnapshot newSnapshot) {
+        snapshot = newSnapshot;
+    }
 
-        if (getNode(groupNode) == null) {
-            return new LinkedHashMap<String, Boolean>();
+    private PermissionsSnapshot compileSnapshot() {
+        LinkedHashMap<String, PermissionsSnapshot.GroupRecord> groups = new LinkedHashMap<String, PermissionsSnapshot.GroupRecord>();
+        ConfigurationSection groupsNode = getNode("groups");
+        if (groupsNode != null) {
+            for (String key : groupsNode.getKeys(false)) {
+                ConfigurationSection node = model.getGroupNode(key);
+                if (node != null && !groups.containsKey(key.toLowerCase())) {
+                    groups.put(key.toLowerCase(), compileGroup(node));
+                }
+            }
         }
 
-        recursionBuffer.add(group);
-        Map<String, Boolean> perms = new LinkedHashMap<String, Boolean>();
-
-        for (String parent : getNode(groupNode).getStringList("inheritance")) {
-            if (recursionBuffer.contains(parent)) {
-                getLogger().warning("In group " + group + ": recursive inheritance from " + parent);
-                continue;
+        HashMap<UUID, PermissionsSnapshot.UserRecord> users = new HashMap<UUID, PermissionsSnapshot.UserRecord>();
+        ConfigurationSection usersNode = getNode("users");
+        if (usersNode != null) {
+            for (String key : usersNode.getKeys(false)) {
+                UUID uuid = PermissionsModel.parseUUID(key);
+                ConfigurationSection node = uuid == null ? null : model.getUserNode(uuid);
+                if (node != null) {
+                    users.put(uuid, compileUser(uuid, node));
+                }
             }
+        }
 
-            putAll(perms, calculateGroupPermissions0(recursionBuffer, parent, world));
+        return new PermissionsSnapshot(++version, getLogger(), model.getTable(), groups, users);
+    }
+
+    private PermissionsSnapshot.GroupRecord compileGroup(ConfigurationSection node) {
+        String desc = "group " + node.getName();
+        return new PermissionsSnapshot.GroupRecord(node.getName(), node.getStringList("inheritance"),
+                compileLayer(desc, node.getCurrentPath() + "/permissions"), compileWorlds(desc, node));
+    }
+
+    private PermissionsSnapshot.UserRecord compileUser(UUID uuid, ConfigurationSection node) {
+        String name = node.getString("name");
+        String desc = "user " + (name != null ? name : uuid);
+        return new PermissionsSnapshot.UserRecord(uuid, name, node.getStringList("groups"),
+                compileLayer(desc, node.getCurrentPath() + "/permissions"), compileWorlds(desc, node));
+    }
+
+    private HashMap<String, PermissionLayer> compileWorlds(String desc, ConfigurationSection node) {
+        HashMap<String, PermissionLayer> worlds = new HashMap<String, PermissionLayer>();
+        ConfigurationSection worldsNode = getNode(node.getCurrentPath() + "/worlds");
+        if (worldsNode != null) {
+            for (String world : worldsNode.getKeys(false)) {
+                if (worldsNode.isConfigurationSection(world)) {
+                    worlds.put(world.toLowerCase(), compileLayer(desc + " world " + world, worldsNode.getCurrentPath() + "/" + world));
+                }
+            }
         }
+        return worlds;
+    }
 
-        if (getNode(groupNode + "/permissions") != null) {
-            putAll(perms, getAllPerms("group " + group, groupNode + "/permissions"));
+    private PermissionLayer compileLayer(String desc, String path) {
+        if (getNode(path) == null) {
+            return PermissionLayer.EMPTY;
         }
+        return PermissionLayer.of(model.getTable(), getAllPerms(desc, path));
+    }
 
-        if (getNode(groupNode + "/worlds/" + world) != null) {
-            putAll(perms, getAllPerms("group " + group + " world " + world, groupNode + "/worlds/" + world));
+    private void recompileUser(UUID uuid) {
+        ConfigurationSection node = model.getUserNode(uuid);
+        PermissionsSnapshot.UserRecord user = node == null ? null : compileUser(uuid, node);
+        publish(snapshot.withUser(++version, uuid, user));
+        if (user == null) {
+            members.remove(uuid);
+        } else {
+            members.put(uuid, user.groups);
+        }
+        if (permissions.containsKey(uuid)) {
+            onlineMembers.put(uuid, snapshot.getUserGroups(uuid));
         }
+    }
+
+    /**
+     * @param affected lower-cased names of the group and every group inheriting from it
+     */
+    private void recompileGroup(String group, Set<String> affected) {
+        ConfigurationSection node = model.getGroupNode(group);
+        expander.invalidate();
+        publish(snapshot.withGroup(++version, group, node == null ? null : compileGroup(node), affected));
+    }
 
-        return perms;
+    private static final class PrecomputedPermissions {
+        private final long groupsVersion;
+        private final PermissionsSnapshot.UserRecord user;
+        private final String world;
+        private final Map<String, Boolean> values;
+        private final long created;
+
+        private PrecomputedPermissions(long groupsVersion, PermissionsSnapshot.UserRecord user, String world, Map<String, Boolean> values, long created) {
+            this.groupsVersion = groupsVersion;
+            this.user = user;
+            this.world = world;
+            this.values = values;
+            this.created = created;
+        }
     }
 
 }
\ No newline at end of file
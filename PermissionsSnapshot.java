@@ -0,0 +1,502 @@
+package me.bursty.ranks.main;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Immutable, versioned view of everything permission resolution needs: the compiled
+ * layers of every group and user. It can be resolved against from any thread; a new
+ * version is published whenever a group, a user or the whole configuration changes.
+ *
+ * <p>Resolved group layers and shared player maps are memoized per snapshot. The memo
+ * tables are handed on to the next version minus whatever the change invalidated.
+ */
+final class PermissionsSnapshot {
+
+    static final class GroupRecord {
+        final String name;
+        final List<String> inheritance;
+        final PermissionLayer base;
+        final Map<String, PermissionLayer> worlds;
+
+        GroupRecord(String name, List<String> inheritance, PermissionLayer base, Map<String, PermissionLayer> worlds) {
+            this.name = name;
+            this.inheritance = Collections.unmodifiableList(new ArrayList<String>(inheritance));
+            this.base = base;
+            this.worlds = Collections.unmodifiableMap(worlds);
+        }
+
+        PermissionLayer world(String world) {
+            PermissionLayer layer = worlds.get(world.toLowerCase());
+            return layer == null ? PermissionLayer.EMPTY : layer;
+        }
+    }
+
+    static final class UserRecord {
+        final UUID uuid;
+        final String name;
+        final List<String> groups;
+        final PermissionLayer base;
+        final Map<String, PermissionLayer> worlds;
+
+        UserRecord(UUID uuid, String name, List<String> groups, PermissionLayer base, Map<String, PermissionLayer> worlds) {
+            this.uuid = uuid;
+            this.name = name;
+            this.groups = Collections.unmodifiableList(new ArrayList<String>(groups));
+            this.base = base;
+            this.worlds = Collections.unmodifiableMap(worlds);
+        }
+
+        PermissionLayer world(String world) {
+            PermissionLayer layer = worlds.get(world.toLowerCase());
+            return layer == null ? PermissionLayer.EMPTY : layer;
+        }
+
+        /**
+         * @return whether both records resolve to the same permissions, which the name
+         * has no part in
+         */
+        boolean resolvesLike(UserRecord other) {
+            return groups.equals(other.groups) && base.equals(other.base) && worlds.equals(other.worlds);
+        }
+    }
+
+    /**
+     * Users of a snapshot laid over a base map that is not copied, with the changes made
+     * since. Overlays of overlays share the base, so lookups never go more than one level
+     * deep, and the changes are a {@link HashTrie}, so each one costs about the same no
+     * matter how many users there are.
+     */
+    private static final class UserOverlay extends AbstractMap<UUID, UserRecord> {
+
+        private final Map<UUID, UserRecord> base;
+        // null for users removed from the base
+        private final HashTrie<UUID, UserRecord> changes;
+        private final int size;
+
+        private UserOverlay(Map<UUID, UserRecord> base, HashTrie<UUID, UserRecord> changes, int size) {
+            this.base = base;
+            this.changes = changes;
+            this.size = size;
+        }
+
+        static UserOverlay of(Map<UUID, UserRecord> users, UUID uuid, UserRecord record) {
+            int size = users.size();
+            if (users.containsKey(uuid)) {
+                --size;
+            }
+            if (record != null) {
+                ++size;
+            }
+            if (users instanceof UserOverlay) {
+                UserOverlay overlay = (UserOverlay) users;
+                return new UserOverlay(overlay.base, overlay.changes.with(uuid, record), size);
+            }
+            return new UserOverlay(users, HashTrie.<UUID, UserRecord>empty().with(uuid, record), size);
+        }
+
+        @Override
+        public UserRecord get(Object key) {
+            return changes.containsKey(key) ? changes.get(key) : base.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return changes.containsKey(key) ? changes.get(key) != null : base.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Set<UUID> keySet() {
+            return new AbstractSet<UUID>() {
+                public Iterator<UUID> iterator() {
+                    final Iterator<UUID> baseKeys = base.keySet().iterator();
+                    final Iterator<Map.Entry<UUID, UserRecord>> changed = changes.entrySet().iterator();
+                    return new Iterator<UUID>() {
+                        private UUID next = advance();
+
+                        private UUID advance() {
+                            while (baseKeys.hasNext()) {
+                                UUID uuid = baseKeys.next();
+                                if (!changes.containsKey(uuid)) {
+                                    return uuid;
+                                }
+                            }
+                            while (changed.hasNext()) {
+                                Map.Entry<UUID, UserRecord> entry = changed.next();
+                                if (entry.getValue() != null) {
+                                    return entry.getKey();
+                                }
+                            }
+                            return null;
+                        }
+
+                        public boolean hasNext() {
+                            return next != null;
+                        }
+
+                        public UUID next() {
+                            if (next == null) {
+                                throw new NoSuchElementException();
+                            }
+                            UUID result = next;
+                            next = advance();
+                            return result;
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return containsKey(o);
+                }
+            };
+        }
+
+        @Override
+        public Set<Map.Entry<UUID, UserRecord>> entrySet() {
+            return new AbstractSet<Map.Entry<UUID, UserRecord>>() {
+                public Iterator<Map.Entry<UUID, UserRecord>> iterator() {
+                    final Iterator<UUID> keys = keySet().iterator();
+                    return new Iterator<Map.Entry<UUID, UserRecord>>() {
+                        public boolean hasNext() {
+                            return keys.hasNext();
+                        }
+
+                        public Map.Entry<UUID, UserRecord> next() {
+                            UUID uuid = keys.next();
+                            return new AbstractMap.SimpleImmutableEntry<UUID, UserRecord>(uuid, get(uuid));
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
+
+    private static final List<String> DEFAULT_GROUPS = Collections.singletonList("default");
+
+    private final long version;
+    // the version in which the groups last changed
+    private final long groupsVersion;
+    private final Logger logger;
+    private final PermissionTable table;
+    private final Map<String, GroupRecord> groups;
+    private final Map<UUID, UserRecord> users;
+    private final InheritanceGraph graph;
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, PermissionLayer>> groupCache;
+    private final ConcurrentHashMap<String, Map<String, Boolean>> sharedCache;
+    private final AtomicInteger sharedHits = new AtomicInteger(), sharedMisses = new AtomicInteger();
+
+    PermissionsSnapshot(long version, Logger logger, PermissionTable table, Map<String, GroupRecord> groups, Map<UUID, UserRecord> users) {
+        this(version, version, logger, table, groups, users, new InheritanceGraph(groups.values(), logger),
+                new ConcurrentHashMap<String, ConcurrentHashMap<String, PermissionLayer>>(),
+                new ConcurrentHashMap<String, Map<String, Boolean>>());
+    }
+
+    private PermissionsSnapshot(long version, long groupsVersion, Logger logger, PermissionTable table, Map<String, GroupRecord> groups, Map<UUID, UserRecord> users, InheritanceGraph graph,
+                                ConcurrentHashMap<String, ConcurrentHashMap<String, PermissionLayer>> groupCache,
+                                ConcurrentHashMap<String, Map<String, Boolean>> sharedCache) {
+        this.version = version;
+        this.groupsVersion = groupsVersion;
+        this.logger = logger;
+        this.table = table;
+        this.groups = groups;
+        this.users = users;
+        this.graph = graph;
+        this.groupCache = groupCache;
+        this.sharedCache = sharedCache;
+    }
+
+    /**
+     * @return a copy with the user's record replaced, or removed if record is null
+     */
+    PermissionsSnapshot withUser(long version, UUID uuid, UserRecord record) {
+        // the users are never copied, which would make every join and rank change cost the
+        // user count
+        Map<UUID, UserRecord> newUsers = UserOverlay.of(users, uuid, record);
+        // user changes never affect what is memoized for groups
+        return new PermissionsSnapshot(version, groupsVersion, logger, table, groups, newUsers, graph, groupCache, sharedCache);
+    }
+
+    /**
+     * @param affected lower-cased names of the group and every group inheriting from it
+     * @return a copy with the group's record replaced, or removed if record is null
+     */
+    PermissionsSnapshot withGroup(long version, String name, GroupRecord record, Set<String> affected) {
+        LinkedHashMap<String, GroupRecord> newGroups = new LinkedHashMap<String, GroupRecord>(groups);
+        GroupRecord old;
+        if (record == null) {
+            old = newGroups.remove(name.toLowerCase());
+        } else {
+            old = newGroups.put(name.toLowerCase(), record);
+        }
+
+        // the graph only depends on which groups exist and whom they inherit from
+        InheritanceGraph newGraph = graph;
+        if (old == null || record == null || !old.inheritance.equals(record.inheritance)) {
+            newGraph = new InheritanceGraph(newGroups.values(), logger);
+        }
+
+        ConcurrentHashMap<String, ConcurrentHashMap<String, PermissionLayer>> newCache = new ConcurrentHashMap<String, ConcurrentHashMap<String, PermissionLayer>>(groupCache);
+        for (String group : affected) {
+            newCache.remove(group);
+        }
+
+        // keys are the world followed by the group list, see resolveShared
+        ConcurrentHashMap<String, Map<String, Boolean>> newShared = new ConcurrentHashMap<String, Map<String, Boolean>>();
+        for (Map.Entry<String, Map<String, Boolean>> entry : sharedCache.entrySet()) {
+            String[] key = entry.getKey().split("/");
+            boolean stale = false;
+            for (int i = 1; i < key.length && !stale; ++i) {
+                stale = affected.contains(key[i]);
+            }
+            if (!stale) {
+                newShared.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return new PermissionsSnapshot(version, version, logger, table, newGroups, users, newGraph, newCache, newShared);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the version in which any group last changed, which user changes leave alone
+     */
+    long getGroupsVersion() {
+        return groupsVersion;
+    }
+
+    PermissionTable getTable() {
+        return table;
+    }
+
+    InheritanceGraph getGraph() {
+        return graph;
+    }
+
+    GroupRecord getGroup(String name) {
+        return groups.get(name.toLowerCase());
+    }
+
+    Collection<GroupRecord> getGroups() {
+        return groups.values();
+    }
+
+    UserRecord getUser(UUID uuid) {
+        return users.get(uuid);
+    }
+
+    Set<UUID> getUsers() {
+        return users.keySet();
+    }
+
+    /**
+     * @return the groups a user resolves through, which is the default group for users
+     * without a record
+     */
+    List<String> getUserGroups(UUID uuid) {
+        UserRecord user = users.get(uuid);
+        return user == null ? DEFAULT_GROUPS : user.groups;
+    }
+
+    /**
+     * Takes over whatever the previous snapshot memoized that the diff leaves untouched,
+     * so an incremental reload does not start from cold caches.
+     */
+    void adoptCaches(PermissionsSnapshot previous, SnapshotDiff diff) {
+        for (Map.Entry<String, ConcurrentHashMap<String, PermissionLayer>> entry : previous.groupCache.entrySet()) {
+            ConcurrentHashMap<String, PermissionLayer> byWorld = new ConcurrentHashMap<String, PermissionLayer>();
+            for (Map.Entry<String, PermissionLayer> world : entry.getValue().entrySet()) {
+                if (!diff.affectsGroup(entry.getKey(), world.getKey())) {
+                    byWorld.put(world.getKey(), world.getValue());
+                }
+            }
+            if (!byWorld.isEmpty()) {
+                groupCache.putIfAbsent(entry.getKey(), byWorld);
+            }
+        }
+
+        for (Map.Entry<String, Map<String, Boolean>> entry : previous.sharedCache.entrySet()) {
+            String[] key = entry.getKey().split("/");
+            boolean affected = false;
+            for (int i = 1; i < key.length && !affected; ++i) {
+                affected = diff.affectsGroup(key[i], key[0]);
+            }
+            if (!affected) {
+                sharedCache.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    int getSharedHits() {
+        return sharedHits.get();
+    }
+
+    int getSharedMisses() {
+        return sharedMisses.get();
+    }
+
+    /**
+     * Ids of every node that a world layer sets for the user in the given world, either
+     * their own or one of any group they inherit. Outside of these nodes, the user's
+     * permissions are the same in every world.
+     */
+    BitSet getWorldOverlay(UUID uuid, String world) {
+        BitSet ids = new BitSet();
+        UserRecord user = users.get(uuid);
+        if (user != null) {
+            user.world(world).addIdsTo(ids);
+        }
+        for (String group : getUserGroups(uuid)) {
+            for (String ancestor : graph.getAncestors(group)) {
+                GroupRecord record = groups.get(ancestor);
+                if (record != null) {
+                    record.world(world).addIdsTo(ids);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Effective permissions of a user in a world. Users without personal nodes for that
+     * world get the shared, unmodifiable map of their group list; everyone else gets a
+     * fresh map of their own.
+     */
+    Map<String, Boolean> resolve(UUID uuid, String world) {
+        return resolve(users.get(uuid), world);
+    }
+
+    /**
+     * Effective permissions of a user record that need not be part of this snapshot.
+     *
+     * @param user the record, or null for a user without one
+     */
+    Map<String, Boolean> resolve(UserRecord user, String world) {
+        if (user == null) {
+            return resolveShared(DEFAULT_GROUPS, world);
+        }
+
+        PermissionLayer userWorld = user.world(world);
+        if (user.base.isEmpty() && userWorld.isEmpty()) {
+            return resolveShared(user.groups, world);
+        }
+
+        ArrayList<PermissionLayer> layers = new ArrayList<PermissionLayer>(user.groups.size() + 2);
+        for (String group : user.groups) {
+            layers.add(resolveGroup(group, world));
+        }
+        layers.add(user.base);
+        layers.add(userWorld);
+
+        return PermissionLayer.merge(layers).toMap(table);
+    }
+
+    private Map<String, Boolean> resolveShared(List<String> groupList, String world) {
+        StringBuilder key = new StringBuilder(world.toLowerCase());
+        for (String group : groupList) {
+            key.append('/').append(group.toLowerCase());
+        }
+
+        Map<String, Boolean> perms = sharedCache.get(key.toString());
+        if (perms != null) {
+            sharedHits.incrementAndGet();
+            return perms;
+        }
+        sharedMisses.incrementAndGet();
+
+        ArrayList<PermissionLayer> layers = new ArrayList<PermissionLayer>(groupList.size());
+        for (String group : groupList) {
+            layers.add(resolveGroup(group, world));
+        }
+        perms = Collections.unmodifiableMap(PermissionLayer.merge(layers).toMap(table));
+
+        // two threads may race here; keep whichever map got in first so it stays canonical
+        Map<String, Boolean> existing = sharedCache.putIfAbsent(key.toString(), perms);
+        return existing == null ? perms : existing;
+    }
+
+    /**
+     * Resolved permissions of a group in a world, shared between every player in that group.
+     */
+    PermissionLayer resolveGroup(String group, String world) {
+        String groupKey = group.toLowerCase();
+        ConcurrentHashMap<String, PermissionLayer> byWorld = groupCache.get(groupKey);
+        if (byWorld == null) {
+            byWorld = new ConcurrentHashMap<String, PermissionLayer>();
+            ConcurrentHashMap<String, PermissionLayer> existing = groupCache.putIfAbsent(groupKey, byWorld);
+            if (existing != null) {
+                byWorld = existing;
+            }
+        }
+
+        String worldKey = world.toLowerCase();
+        PermissionLayer perms = byWorld.get(worldKey);
+        if (perms == null) {
+            perms = resolveGroup0(groupKey, world);
+            byWorld.put(worldKey, perms);
+        }
+        return perms;
+    }
+
+    private PermissionLayer resolveGroup0(String group, String world) {
+        if (!groups.containsKey(group)) {
+            return PermissionLayer.EMPTY;
+        }
+
+        ArrayList<String> order = new ArrayList<String>();
+        linearize(group, new HashSet<String>(), order);
+        ArrayList<PermissionLayer> layers = new ArrayList<PermissionLayer>(order.size() * 2);
+        for (String name : order) {
+            GroupRecord record = groups.get(name);
+            layers.add(record.base);
+            layers.add(record.world(world));
+        }
+
+        return PermissionLayer.merge(layers);
+    }
+
+    /**
+     * Lists a group after everything it inherits, depth-first in inheritance order. A
+     * group reached along two paths is only listed the first time, so in a diamond the
+     * shared ancestor does not override a sibling that comes before the second path.
+     */
+    private void linearize(String group, Set<String> visited, List<String> order) {
+        if (!groups.containsKey(group)) {
+            return;
+        }
+        visited.add(group);
+        for (String parent : graph.getParents(group)) {
+            if (!visited.contains(parent)) {
+                linearize(parent, visited, order);
+            }
+        }
+        order.add(group);
+    }
+
+}
\ No newline at end of file
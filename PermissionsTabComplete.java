@@ -142,7 +142,11 @@ final class PermissionsTabComplete implements TabCompleter {
     }
 
     private Collection<String> allGroups() {
-        return plugin.getConfig().getConfigurationSection("groups").getKeys(false);
+        ArrayList<String> groups = new ArrayList<String>();
+        for (PermissionsSnapshot.GroupRecord group : plugin.getSnapshot().getGroups()) {
+            groups.add(group.name);
+        }
+        return groups;
     }
 
     private Collection<String> allNodes() {
@@ -9,19 +9,57 @@ import org.bukkit.event.block.Action;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.player.*;
+import org.bukkit.event.server.PluginDisableEvent;
+import org.bukkit.event.server.PluginEnableEvent;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 final class PlayerListener implements Listener {
 
     private final PermissionsPlugin plugin;
+    // keyed by entity id, which stays the same for as long as the player is online
+    private final CooldownTable messageCooldowns = new CooldownTable();
+    private final AtomicInteger suppressedMessages = new AtomicInteger();
 
     public PlayerListener(PermissionsPlugin plugin) {
         this.plugin = plugin;
     }
 
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginEnable(PluginEnableEvent event) {
+        plugin.refreshExpanded();
+    }
+
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginDisable(PluginDisableEvent event) {
+        if (event.getPlugin() != plugin) {
+            plugin.refreshExpanded();
+        }
+    }
+
+
     @EventHandler(priority = EventPriority.LOWEST)
     public void onWorldChange(PlayerChangedWorldEvent event) {
-        plugin.calculateAttachment(event.getPlayer());
+        plugin.calculateWorldChange(event.getPlayer(), event.getFrom().getName());
+    }
+
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            plugin.prefetchUser(event.getUniqueId());
+            plugin.precompute(event.getUniqueId());
+        }
+    }
+
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerLoginResult(PlayerLoginEvent event) {
+        if (event.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+            plugin.discardPrecomputed(event.getPlayer().getUniqueId());
+        }
     }
 
 
@@ -41,12 +79,14 @@ final class PlayerListener implements Listener {
     public void onPlayerKick(PlayerKickEvent event) {
         plugin.debug("Player " + event.getPlayer().getName() + " was kicked, unregistering...");
         plugin.unregisterPlayer(event.getPlayer());
+        messageCooldowns.remove(event.getPlayer().getEntityId());
     }
 
     @EventHandler(priority = EventPriority.HIGHEST)
     public void onPlayerQuit(PlayerQuitEvent event) {
         plugin.debug("Player " + event.getPlayer().getName() + " quit, unregistering...");
         plugin.unregisterPlayer(event.getPlayer());
+        messageCooldowns.remove(event.getPlayer().getEntityId());
     }
 
 
@@ -55,7 +95,7 @@ final class PlayerListener implements Listener {
         if (event.getAction() == Action.LEFT_CLICK_AIR || event.getAction() == Action.RIGHT_CLICK_AIR) {
             return;
         }
-        if (!event.getPlayer().hasPermission("permissions.build")) {
+        if (!plugin.canBuild(event.getPlayer())) {
             bother(event.getPlayer());
             event.setCancelled(true);
         }
@@ -63,7 +103,7 @@ final class PlayerListener implements Listener {
 
     @EventHandler(ignoreCancelled = true)
     public void onBlockPlace(BlockPlaceEvent event) {
-        if (!event.getPlayer().hasPermission("permissions.build")) {
+        if (!plugin.canBuild(event.getPlayer())) {
             bother(event.getPlayer());
             event.setCancelled(true);
         }
@@ -71,17 +111,37 @@ final class PlayerListener implements Listener {
 
     @EventHandler(ignoreCancelled = true)
     public void onBlockBreak(BlockBreakEvent event) {
-        if (!event.getPlayer().hasPermission("permissions.build")) {
+        if (!plugin.canBuild(event.getPlayer())) {
             bother(event.getPlayer());
             event.setCancelled(true);
         }
     }
 
     private void bother(Player player) {
-        if (plugin.getConfig().getString("messages/build", "").length() > 0) {
-            String message = ChatColor.translateAlternateColorCodes('&', plugin.getConfig().getString("messages/build", ""));
+        String message = plugin.getBuildMessage();
+        if (message == null) {
+            return;
+        }
+        if (messageCooldowns.tryAcquire(player.getEntityId(), System.currentTimeMillis(), plugin.getBuildMessageCooldown())) {
             player.sendMessage(message);
+        } else {
+            suppressedMessages.incrementAndGet();
         }
     }
 
+    /**
+     * @return how many anti-build messages were not sent because of the cooldown
+     */
+    int getSuppressedMessages() {
+        return suppressedMessages.get();
+    }
+
+    /**
+     * Forgets every cooldown when the plugin is disabled, since players who quit while it
+     * is disabled are never removed and their entity ids may be reused later.
+     */
+    void clearCooldowns() {
+        messageCooldowns.clear();
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,163 @@
+package me.bursty.ranks.main;
+
+import java.util.*;
+
+/**
+ * Structural difference between two snapshots: which groups and users changed, and in
+ * which worlds. A group change is propagated to every group inheriting from it, so that
+ * a player only needs recalculating if one of their own groups shows up here.
+ */
+final class SnapshotDiff {
+
+    /**
+     * Lower-cased names mapped to the lower-cased worlds they changed in, or to null
+     * when they changed everywhere.
+     */
+    private final HashMap<String, Set<String>> groups = new HashMap<String, Set<String>>();
+    private final HashMap<UUID, Set<String>> users = new HashMap<UUID, Set<String>>();
+    private final PermissionsSnapshot to;
+
+    private SnapshotDiff(PermissionsSnapshot to) {
+        this.to = to;
+    }
+
+    static SnapshotDiff between(PermissionsSnapshot from, PermissionsSnapshot to) {
+        SnapshotDiff diff = new SnapshotDiff(to);
+
+        HashSet<String> names = new HashSet<String>();
+        for (PermissionsSnapshot.GroupRecord group : from.getGroups()) {
+            names.add(group.name.toLowerCase());
+        }
+        for (PermissionsSnapshot.GroupRecord group : to.getGroups()) {
+            names.add(group.name.toLowerCase());
+        }
+        for (String name : names) {
+            PermissionsSnapshot.GroupRecord a = from.getGroup(name), b = to.getGroup(name);
+            if (a == null || b == null) {
+                if (a != b) {
+                    diff.groups.put(name, null);
+                }
+            } else if (!a.inheritance.equals(b.inheritance) || !a.base.equals(b.base)) {
+                diff.groups.put(name, null);
+            } else {
+                Set<String> worlds = changedWorlds(a.worlds, b.worlds);
+                if (!worlds.isEmpty()) {
+                    diff.groups.put(name, worlds);
+                }
+            }
+        }
+        diff.propagate();
+
+        HashSet<UUID> uuids = new HashSet<UUID>(from.getUsers());
+        uuids.addAll(to.getUsers());
+        for (UUID uuid : uuids) {
+            PermissionsSnapshot.UserRecord a = from.getUser(uuid), b = to.getUser(uuid);
+            if (a == null || b == null) {
+                if (a != b) {
+                    diff.users.put(uuid, null);
+                }
+            } else if (!a.groups.equals(b.groups) || !a.base.equals(b.base)) {
+                diff.users.put(uuid, null);
+            } else {
+                Set<String> worlds = changedWorlds(a.worlds, b.worlds);
+                if (!worlds.isEmpty()) {
+                    diff.users.put(uuid, worlds);
+                }
+            }
+        }
+
+        return diff;
+    }
+
+    private static Set<String> changedWorlds(Map<String, PermissionLayer> a, Map<String, PermissionLayer> b) {
+        HashSet<String> result = new HashSet<String>();
+        for (Map.Entry<String, PermissionLayer> entry : a.entrySet()) {
+            PermissionLayer other = b.get(entry.getKey());
+            if (!entry.getValue().equals(other == null ? PermissionLayer.EMPTY : other)) {
+                result.add(entry.getKey());
+            }
+        }
+        for (Map.Entry<String, PermissionLayer> entry : b.entrySet()) {
+            if (!a.containsKey(entry.getKey()) && !entry.getValue().isEmpty()) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Pushes every group change down to the groups inheriting from it in the new snapshot.
+     */
+    private void propagate() {
+        InheritanceGraph graph = to.getGraph();
+        ArrayDeque<String> queue = new ArrayDeque<String>(groups.keySet());
+        while (!queue.isEmpty()) {
+            String parent = queue.poll();
+            Set<String> worlds = groups.get(parent);
+            for (String child : graph.getChildren(parent)) {
+                if (merge(child, worlds)) {
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the child's entry grew
+     */
+    private boolean merge(String group, Set<String> worlds) {
+        if (!groups.containsKey(group)) {
+            groups.put(group, worlds == null ? null : new HashSet<String>(worlds));
+            return true;
+        }
+        Set<String> existing = groups.get(group);
+        if (existing == null) {
+            return false;
+        } else if (worlds == null) {
+            groups.put(group, null);
+            return true;
+        }
+        return existing.addAll(worlds);
+    }
+
+    boolean isEmpty() {
+        return groups.isEmpty() && users.isEmpty();
+    }
+
+    int getChangedGroups() {
+        return groups.size();
+    }
+
+    int getChangedUsers() {
+        return users.size();
+    }
+
+    boolean affectsGroup(String group, String world) {
+        String key = group.toLowerCase();
+        if (!groups.containsKey(key)) {
+            return false;
+        }
+        Set<String> worlds = groups.get(key);
+        return worlds == null || worlds.contains(world.toLowerCase());
+    }
+
+    /**
+     * @return whether a player's resolution inputs in the given world changed
+     */
+    boolean affectsPlayer(UUID uuid, String world) {
+        if (users.containsKey(uuid)) {
+            Set<String> worlds = users.get(uuid);
+            if (worlds == null || worlds.contains(world.toLowerCase())) {
+                return true;
+            }
+        }
+
+        for (String group : to.getUserGroups(uuid)) {
+            if (affectsGroup(group, world)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
\ No newline at end of file
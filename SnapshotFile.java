@@ -0,0 +1,406 @@
+package me.bursty.ranks.main;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Versioned binary form of a compiled snapshot, kept as snapshot.bin next to config.yml
+ * so that startup does not have to wait for the YAML to be parsed. It holds the node
+ * table, every group, every user and the settings of config.yml, and remembers the
+ * modification time, length and checksum of the config.yml it was compiled from; any
+ * other config.yml makes it stale.
+ *
+ * <p>The file is memory-mapped when read. Groups and the group list of every user are
+ * decoded right away, while the rest of a user is looked up in a sorted index and only
+ * decoded when first asked for.
+ */
+final class SnapshotFile {
+
+    private static final int MAGIC = 0x62505331;
+    private static final int VERSION = 3;
+
+    /**
+     * A snapshot read back from disk, along with the settings part of config.yml.
+     */
+    static final class Loaded {
+        final PermissionsSnapshot snapshot;
+        final String settings;
+        // the group list of every user, by UUID order
+        final LinkedHashMap<UUID, List<String>> groupLists;
+
+        Loaded(PermissionsSnapshot snapshot, String settings, LinkedHashMap<UUID, List<String>> groupLists) {
+            this.snapshot = snapshot;
+            this.settings = settings;
+            this.groupLists = groupLists;
+        }
+    }
+
+    /**
+     * What identifies a version of config.yml. The modification time alone can miss an
+     * edit made within its granularity, so the content is checksummed as well.
+     */
+    static final class Source {
+        final long modified;
+        final long length;
+        final long checksum;
+
+        private Source(long modified, long length, long checksum) {
+            this.modified = modified;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Reads the whole file, which is still far cheaper than parsing it.
+         */
+        static Source of(File file) throws IOException {
+            long modified = file.lastModified();
+            CRC32 crc = new CRC32();
+            long length = 0;
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                    length += read;
+                }
+            } finally {
+                in.close();
+            }
+            return new Source(modified, length, crc.getValue());
+        }
+    }
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * @param settings config.yml without its groups and users, as YAML
+     * @param source the config.yml the snapshot was compiled from, taken together with
+     *               the snapshot
+     */
+    static void write(File file, PermissionsSnapshot snapshot, String settings, Source source) throws IOException {
+        PermissionTable table = snapshot.getTable();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(source.modified);
+        out.writeLong(source.length);
+        out.writeLong(source.checksum);
+        writeString(out, settings);
+
+        int names = table.size();
+        out.writeInt(names);
+        for (int id = 0; id < names; ++id) {
+            writeString(out, table.name(id));
+        }
+
+        Collection<PermissionsSnapshot.GroupRecord> groups = snapshot.getGroups();
+        out.writeInt(groups.size());
+        for (PermissionsSnapshot.GroupRecord group : groups) {
+            writeString(out, group.name);
+            writeStrings(out, group.inheritance);
+            group.base.writeTo(out);
+            writeWorlds(out, group.worlds);
+        }
+
+        // users go after a sorted index of where each one starts and their group lists
+        ArrayList<UUID> uuids = new ArrayList<UUID>(snapshot.getUsers());
+        Collections.sort(uuids);
+        ByteArrayOutputStream userBytes = new ByteArrayOutputStream();
+        DataOutputStream userOut = new DataOutputStream(userBytes);
+        out.writeInt(uuids.size());
+        for (UUID uuid : uuids) {
+            PermissionsSnapshot.UserRecord user = snapshot.getUser(uuid);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+            out.writeInt(userOut.size());
+
+            userOut.writeBoolean(user.name != null);
+            if (user.name != null) {
+                writeString(userOut, user.name);
+            }
+            writeStrings(userOut, user.groups);
+            user.base.writeTo(userOut);
+            writeWorlds(userOut, user.worlds);
+        }
+        for (UUID uuid : uuids) {
+            writeStrings(out, snapshot.getUser(uuid).groups);
+        }
+        userOut.flush();
+        userBytes.writeTo(out);
+        out.flush();
+
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), bytes.toByteArray());
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Maps a snapshot file and interns its nodes into the table. Must be called from the
+     * main thread.
+     *
+     * @return the snapshot, or null if there is none or it does not match config.yml
+     */
+    static Loaded read(File file, File source, long version, Logger logger, PermissionTable table) throws IOException {
+        if (!file.isFile() || !source.isFile()) {
+            return null;
+        }
+
+        ByteBuffer in;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping stays valid after the channel is closed
+            channel.close();
+        }
+
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION
+                    || in.getLong() != source.lastModified() || in.getLong() != source.length()) {
+                return null;
+            }
+            long checksum = in.getLong();
+            if (Source.of(source).checksum != checksum) {
+                return null;
+            }
+            String settings = readString(in);
+
+            int[] remap = new int[in.getInt()];
+            for (int i = 0; i < remap.length; ++i) {
+                remap[i] = table.intern(readString(in));
+            }
+
+            LinkedHashMap<String, PermissionsSnapshot.GroupRecord> groups = new LinkedHashMap<String, PermissionsSnapshot.GroupRecord>();
+            for (int i = in.getInt(); i > 0; --i) {
+                String name = readString(in);
+                List<String> inheritance = readStrings(in);
+                PermissionLayer base = PermissionLayer.readFrom(in, remap);
+                groups.put(name.toLowerCase(), new PermissionsSnapshot.GroupRecord(name, inheritance, base, readWorlds(in, remap)));
+            }
+
+            int count = in.getInt();
+            ByteBuffer index = in.slice();
+            index.limit(count * 20);
+            in.position(in.position() + count * 20);
+            LinkedHashMap<UUID, List<String>> groupLists = new LinkedHashMap<UUID, List<String>>();
+            for (int i = 0; i < count; ++i) {
+                groupLists.put(new UUID(index.getLong(i * 20), index.getLong(i * 20 + 8)), readStrings(in));
+            }
+            ByteBuffer users = in.slice();
+
+            return new Loaded(new PermissionsSnapshot(version, logger, table, groups, new LazyUsers(index, users, count, remap)), settings, groupLists);
+        } catch (RuntimeException ex) {
+            // underflows and bad limits, both meaning the file was cut short
+            throw new IOException("Truncated snapshot file " + file, ex);
+        }
+    }
+
+    /**
+     * Users of a mapped snapshot, decoded on first access and kept afterwards. Safe to use
+     * from any thread.
+     */
+    private static final class LazyUsers extends AbstractMap<UUID, PermissionsSnapshot.UserRecord> {
+
+        private final ByteBuffer index;
+        private final ByteBuffer data;
+        private final int count;
+        private final int[] remap;
+        private final ConcurrentHashMap<UUID, PermissionsSnapshot.UserRecord> decoded = new ConcurrentHashMap<UUID, PermissionsSnapshot.UserRecord>();
+
+        LazyUsers(ByteBuffer index, ByteBuffer data, int count, int[] remap) {
+            this.index = index;
+            this.data = data;
+            this.count = count;
+            this.remap = remap;
+        }
+
+        private UUID key(int i) {
+            return new UUID(index.getLong(i * 20), index.getLong(i * 20 + 8));
+        }
+
+        /**
+         * @return the position of the user in the index, or -1
+         */
+        private int find(UUID uuid) {
+            int low = 0, high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = key(mid).compareTo(uuid);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public PermissionsSnapshot.UserRecord get(Object key) {
+            if (!(key instanceof UUID)) {
+                return null;
+            }
+            UUID uuid = (UUID) key;
+            PermissionsSnapshot.UserRecord user = decoded.get(uuid);
+            if (user != null) {
+                return user;
+            }
+            int i = find(uuid);
+            if (i < 0) {
+                return null;
+            }
+
+            ByteBuffer in = data.duplicate();
+            in.position(index.getInt(i * 20 + 16));
+            String name = in.get() != 0 ? readString(in) : null;
+            List<String> groups = readStrings(in);
+            PermissionLayer base = PermissionLayer.readFrom(in, remap);
+            user = new PermissionsSnapshot.UserRecord(uuid, name, groups, base, readWorlds(in, remap));
+
+            PermissionsSnapshot.UserRecord existing = decoded.putIfAbsent(uuid, user);
+            return existing == null ? user : existing;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof UUID && find((UUID) key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public Set<UUID> keySet() {
+            return new AbstractSet<UUID>() {
+                public Iterator<UUID> iterator() {
+                    return new Iterator<UUID>() {
+                        private int next = 0;
+
+                        public boolean hasNext() {
+                            return next < count;
+                        }
+
+                        public UUID next() {
+                            if (next >= count) {
+                                throw new NoSuchElementException();
+                            }
+                            return key(next++);
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                public int size() {
+                    return count;
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return containsKey(o);
+                }
+            };
+        }
+
+        @Override
+        public Set<Map.Entry<UUID, PermissionsSnapshot.UserRecord>> entrySet() {
+            return new AbstractSet<Map.Entry<UUID, PermissionsSnapshot.UserRecord>>() {
+                public Iterator<Map.Entry<UUID, PermissionsSnapshot.UserRecord>> iterator() {
+                    final Iterator<UUID> keys = keySet().iterator();
+                    return new Iterator<Map.Entry<UUID, PermissionsSnapshot.UserRecord>>() {
+                        public boolean hasNext() {
+                            return keys.hasNext();
+                        }
+
+                        public Map.Entry<UUID, PermissionsSnapshot.UserRecord> next() {
+                            UUID uuid = keys.next();
+                            return new AbstractMap.SimpleImmutableEntry<UUID, PermissionsSnapshot.UserRecord>(uuid, get(uuid));
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                public int size() {
+                    return count;
+                }
+            };
+        }
+    }
+
+    private static void writeWorlds(DataOutputStream out, Map<String, PermissionLayer> worlds) throws IOException {
+        out.writeInt(worlds.size());
+        for (Map.Entry<String, PermissionLayer> entry : worlds.entrySet()) {
+            writeString(out, entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    private static HashMap<String, PermissionLayer> readWorlds(ByteBuffer in, int[] remap) {
+        HashMap<String, PermissionLayer> worlds = new HashMap<String, PermissionLayer>();
+        for (int i = in.getInt(); i > 0; --i) {
+            String world = readString(in);
+            worlds.put(world, PermissionLayer.readFrom(in, remap));
+        }
+        return worlds;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            writeString(out, string);
+        }
+    }
+
+    private static List<String> readStrings(ByteBuffer in) {
+        int size = in.getInt();
+        ArrayList<String> strings = new ArrayList<String>(size);
+        for (int i = 0; i < size; ++i) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // every JVM supports UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
\ No newline at end of file
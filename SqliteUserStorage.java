@@ -0,0 +1,228 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Users in an embedded SQLite database, using the driver that ships with the server.
+ * Groups and nodes are kept as rows keyed by UUID, so loading a user is a few primary
+ * key lookups and saving a batch of users is one transaction of batched statements.
+ *
+ * <p>Nodes of the base permissions are stored with an empty world.
+ *
+ * <p>The database runs in WAL mode and users are read through a connection of their
+ * own, so a user loaded on the main thread never waits for a batch being saved.
+ */
+final class SqliteUserStorage implements UserStorage {
+
+    private final File file;
+    private final Connection connection;
+    private final Connection reader;
+    private final Object readLock = new Object();
+
+    SqliteUserStorage(File file) throws SQLException {
+        this.file = file;
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException ex) {
+            throw new SQLException("The SQLite driver is not available", ex);
+        }
+        file.getParentFile().mkdirs();
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+
+        Statement statement = connection.createStatement();
+        try {
+            // lets the reader see the last commit while a save is in progress
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS bperms_users (" +
+                    "uuid CHAR(36) NOT NULL PRIMARY KEY, name VARCHAR(16))");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS bperms_user_groups (" +
+                    "uuid CHAR(36) NOT NULL, position INTEGER NOT NULL, name VARCHAR(64) NOT NULL, " +
+                    "PRIMARY KEY (uuid, position))");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS bperms_user_nodes (" +
+                    "uuid CHAR(36) NOT NULL, world VARCHAR(64) NOT NULL, position INTEGER NOT NULL, " +
+                    "node VARCHAR(255) NOT NULL, value BOOLEAN NOT NULL, PRIMARY KEY (uuid, world, position))");
+        } finally {
+            statement.close();
+        }
+        connection.setAutoCommit(false);
+        connection.commit();
+
+        reader = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        reader.setAutoCommit(false);
+    }
+
+    public YamlConfiguration load(UUID uuid) throws IOException {
+        String key = uuid.toString();
+        YamlConfiguration data = new YamlConfiguration();
+        data.options().pathSeparator('/');
+        synchronized (readLock) {
+            try {
+                try {
+                    if (!read(key, data)) {
+                        return null;
+                    }
+                } finally {
+                    // ends the read transaction, which would otherwise hold back checkpoints
+                    reader.commit();
+                }
+            } catch (SQLException ex) {
+                throw new IOException("Failed to load user " + uuid + " from " + file, ex);
+            }
+        }
+        return data;
+    }
+
+    private boolean read(String key, YamlConfiguration data) throws SQLException {
+        PreparedStatement user = reader.prepareStatement("SELECT name FROM bperms_users WHERE uuid = ?");
+        try {
+            user.setString(1, key);
+            ResultSet result = user.executeQuery();
+            if (!result.next()) {
+                return false;
+            }
+            if (result.getString(1) != null) {
+                data.set("name", result.getString(1));
+            }
+        } finally {
+            user.close();
+        }
+
+        PreparedStatement groups = reader.prepareStatement("SELECT name FROM bperms_user_groups WHERE uuid = ? ORDER BY position");
+        try {
+            groups.setString(1, key);
+            ResultSet result = groups.executeQuery();
+            ArrayList<String> list = new ArrayList<String>();
+            while (result.next()) {
+                list.add(result.getString(1));
+            }
+            data.set("groups", list);
+        } finally {
+            groups.close();
+        }
+
+        PreparedStatement nodes = reader.prepareStatement("SELECT world, node, value FROM bperms_user_nodes WHERE uuid = ? ORDER BY world, position");
+        try {
+            nodes.setString(1, key);
+            ResultSet result = nodes.executeQuery();
+            while (result.next()) {
+                String world = result.getString(1);
+                String path = world.isEmpty() ? "permissions" : "worlds/" + world;
+                data.set(path + "/" + result.getString(2), result.getBoolean(3));
+            }
+        } finally {
+            nodes.close();
+        }
+        return true;
+    }
+
+    public synchronized void save(Map<UUID, ConfigurationSection> users) throws IOException {
+        try {
+            PreparedStatement deleteUser = connection.prepareStatement("DELETE FROM bperms_users WHERE uuid = ?");
+            PreparedStatement deleteGroups = connection.prepareStatement("DELETE FROM bperms_user_groups WHERE uuid = ?");
+            PreparedStatement deleteNodes = connection.prepareStatement("DELETE FROM bperms_user_nodes WHERE uuid = ?");
+            PreparedStatement putUser = connection.prepareStatement("INSERT OR REPLACE INTO bperms_users (uuid, name) VALUES (?, ?)");
+            PreparedStatement putGroup = connection.prepareStatement("INSERT INTO bperms_user_groups (uuid, position, name) VALUES (?, ?, ?)");
+            PreparedStatement putNode = connection.prepareStatement("INSERT INTO bperms_user_nodes (uuid, world, position, node, value) VALUES (?, ?, ?, ?, ?)");
+            try {
+                for (Map.Entry<UUID, ConfigurationSection> entry : users.entrySet()) {
+                    String key = entry.getKey().toString();
+                    ConfigurationSection user = entry.getValue();
+                    deleteGroups.setString(1, key);
+                    deleteGroups.addBatch();
+                    deleteNodes.setString(1, key);
+                    deleteNodes.addBatch();
+                    if (user == null) {
+                        deleteUser.setString(1, key);
+                        deleteUser.addBatch();
+                        continue;
+                    }
+
+                    putUser.setString(1, key);
+                    putUser.setString(2, user.getString("name"));
+                    putUser.addBatch();
+
+                    int position = 0;
+                    for (String group : user.getStringList("groups")) {
+                        putGroup.setString(1, key);
+                        putGroup.setInt(2, position++);
+                        putGroup.setString(3, group);
+                        putGroup.addBatch();
+                    }
+
+                    addNodes(putNode, key, "", user.getConfigurationSection("permissions"));
+                    ConfigurationSection worlds = user.getConfigurationSection("worlds");
+                    if (worlds != null) {
+                        for (String world : worlds.getKeys(false)) {
+                            addNodes(putNode, key, world, worlds.getConfigurationSection(world));
+                        }
+                    }
+                }
+
+                // removals first, so users written again get a clean slate
+                deleteGroups.executeBatch();
+                deleteNodes.executeBatch();
+                deleteUser.executeBatch();
+                putUser.executeBatch();
+                putGroup.executeBatch();
+                putNode.executeBatch();
+                connection.commit();
+            } finally {
+                deleteUser.close();
+                deleteGroups.close();
+                deleteNodes.close();
+                putUser.close();
+                putGroup.close();
+                putNode.close();
+            }
+        } catch (SQLException ex) {
+            try {
+                connection.rollback();
+            } catch (SQLException ignored) {
+            }
+            throw new IOException("Failed to save " + users.size() + " users to " + file, ex);
+        }
+    }
+
+    private static void addNodes(PreparedStatement statement, String key, String world, ConfigurationSection section) throws SQLException {
+        if (section == null) {
+            return;
+        }
+        int position = 0;
+        for (String node : section.getKeys(true)) {
+            if (section.isBoolean(node)) {
+                statement.setString(1, key);
+                statement.setString(2, world);
+                statement.setInt(3, position++);
+                statement.setString(4, node);
+                statement.setBoolean(5, section.getBoolean(node));
+                statement.addBatch();
+            }
+        }
+    }
+
+    public String describe() {
+        return file.getPath();
+    }
+
+    public synchronized void close() {
+        synchronized (readLock) {
+            try {
+                reader.close();
+            } catch (SQLException ignored) {
+            }
+        }
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+}
\ No newline at end of file
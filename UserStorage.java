@@ -0,0 +1,36 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Where {@link UserStore} keeps users that do not live in config.yml. A user is handed
+ * over in the same shape as their section in config.yml would have.
+ *
+ * <p>Loads may come from any thread. Saves only come from the single writer thread of
+ * the user store, or from the main thread while nothing is being written.
+ */
+interface UserStorage {
+
+    /**
+     * @return the stored user, or null if there is none
+     */
+    YamlConfiguration load(UUID uuid) throws IOException;
+
+    /**
+     * Stores a batch of users at once. A null section removes the user.
+     */
+    void save(Map<UUID, ConfigurationSection> users) throws IOException;
+
+    /**
+     * @return where users are stored, for log messages
+     */
+    String describe();
+
+    void close();
+
+}
\ No newline at end of file
@@ -0,0 +1,401 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.scheduler.BukkitTask;
+import org.bukkit.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+
+/**
+ * Storage for users outside of config.yml, used when user-storage is set to sharded or
+ * sqlite. config.yml then only keeps groups and settings, while users live in a
+ * {@link UserStorage}: a small file of their own each, or an embedded database.
+ *
+ * <p>A user is only loaded into the configuration tree while they are online or when a
+ * command targets them. Offline users stay loaded in an LRU of bounded size and are
+ * written and dropped from the tree when they fall out of it. Lookups of unloaded users
+ * through the API read the storage into a detached record instead, cached the same way.
+ *
+ * <p>Writes are coalesced like {@link ConfigSaver} does, but only touch the users that
+ * changed. Every flush is handed to the storage as one batch on a single writer thread,
+ * so batches stay in order.
+ */
+final class UserStore {
+
+    // cached by peek for users that are not stored, so they are not looked up again
+    private static final PermissionsSnapshot.UserRecord MISSING = new PermissionsSnapshot.UserRecord(new UUID(0, 0), null,
+            Collections.<String>emptyList(), PermissionLayer.EMPTY, Collections.<String, PermissionLayer>emptyMap());
+
+    private final PermissionsPlugin plugin;
+    private final UserStorage storage;
+    private final int cacheSize;
+
+    private final HashSet<UUID> loaded = new HashSet<UUID>();
+    // loaded users that are offline, least recently used first
+    private final LinkedHashMap<UUID, Boolean> offline = new LinkedHashMap<UUID, Boolean>(16, 0.75f, true);
+    private final LinkedHashSet<UUID> dirty = new LinkedHashSet<UUID>();
+    private final ConcurrentHashMap<UUID, YamlConfiguration> prefetched = new ConcurrentHashMap<UUID, YamlConfiguration>();
+    private final Map<UUID, PermissionsSnapshot.UserRecord> peeked;
+    private final ExecutorService writer;
+
+    private BukkitTask pending;
+
+    UserStore(PermissionsPlugin plugin, UserStorage storage, final int cacheSize) {
+        this.plugin = plugin;
+        this.storage = storage;
+        this.cacheSize = cacheSize;
+        this.peeked = Collections.synchronizedMap(new LinkedHashMap<UUID, PermissionsSnapshot.UserRecord>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, PermissionsSnapshot.UserRecord> eldest) {
+                return size() > cacheSize;
+            }
+        });
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bPermissions user writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    String describe() {
+        return storage.describe();
+    }
+
+    private YamlConfiguration read(UUID uuid) {
+        try {
+            return storage.load(uuid);
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to load user " + uuid, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Reads a joining user ahead of the join. Called from the async pre-login thread.
+     */
+    void prefetch(UUID uuid) {
+        YamlConfiguration data = read(uuid);
+        if (data != null) {
+            prefetched.put(uuid, data);
+        }
+    }
+
+    /**
+     * Makes sure a user is loaded into the configuration tree. Must be called from the
+     * main thread before a user is read or changed through the tree.
+     */
+    void load(UUID uuid) {
+        YamlConfiguration data = prefetched.remove(uuid);
+        if (loaded.contains(uuid)) {
+            if (plugin.getServer().getPlayer(uuid) != null) {
+                offline.remove(uuid);
+            } else {
+                offline.get(uuid);
+            }
+            return;
+        }
+        if (data == null) {
+            data = read(uuid);
+        }
+
+        loaded.add(uuid);
+        peeked.remove(uuid);
+        if (data != null) {
+            plugin.attachUser(uuid, data);
+        }
+        if (plugin.getServer().getPlayer(uuid) == null) {
+            offline.put(uuid, true);
+            evict();
+        }
+    }
+
+    /**
+     * Called when a user goes offline; they stay loaded until the LRU drops them.
+     */
+    void release(UUID uuid) {
+        if (loaded.contains(uuid)) {
+            offline.put(uuid, true);
+            evict();
+        }
+    }
+
+    private void evict() {
+        LinkedHashMap<UUID, ConfigurationSection> batch = new LinkedHashMap<UUID, ConfigurationSection>();
+        Iterator<UUID> it = offline.keySet().iterator();
+        while (offline.size() > cacheSize && it.hasNext()) {
+            UUID uuid = it.next();
+            it.remove();
+            if (plugin.getServer().getPlayer(uuid) != null) {
+                // back online, released again when they quit
+                continue;
+            }
+            if (dirty.remove(uuid)) {
+                batch.put(uuid, copy(uuid));
+            }
+            loaded.remove(uuid);
+            plugin.detachUser(uuid);
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    /**
+     * Detached record of a user for lookups from any thread, read from the storage if they
+     * are not loaded. Returns null if the user is not stored, which is cached as well.
+     */
+    PermissionsSnapshot.UserRecord peek(UUID uuid) {
+        PermissionsSnapshot.UserRecord record = peeked.get(uuid);
+        if (record != null) {
+            return record == MISSING ? null : record;
+        }
+        YamlConfiguration data = read(uuid);
+        if (data == null) {
+            peeked.put(uuid, MISSING);
+            return null;
+        }
+        record = toRecord(uuid, data);
+        peeked.put(uuid, record);
+        return record;
+    }
+
+    /**
+     * Record of a user read by {@link #prefetch}, for resolving them before they are
+     * loaded. Called from the async pre-login thread.
+     *
+     * @return the record, or null if the user is not stored
+     */
+    PermissionsSnapshot.UserRecord getPrefetched(UUID uuid) {
+        YamlConfiguration data = prefetched.get(uuid);
+        return data == null ? null : toRecord(uuid, data);
+    }
+
+    /**
+     * Forgets what was read for a login that did not go through.
+     */
+    void discardPrefetched(UUID uuid) {
+        prefetched.remove(uuid);
+    }
+
+    private PermissionsSnapshot.UserRecord toRecord(UUID uuid, YamlConfiguration data) {
+        PermissionTable table = plugin.getSnapshot().getTable();
+        HashMap<String, PermissionLayer> worlds = new HashMap<String, PermissionLayer>();
+        ConfigurationSection worldsNode = data.getConfigurationSection("worlds");
+        if (worldsNode != null) {
+            for (String world : worldsNode.getKeys(false)) {
+                worlds.put(world.toLowerCase(), readLayer(table, worldsNode.getConfigurationSection(world)));
+            }
+        }
+        return new PermissionsSnapshot.UserRecord(uuid, data.getString("name"), data.getStringList("groups"),
+                readLayer(table, data.getConfigurationSection("permissions")), worlds);
+    }
+
+    private static PermissionLayer readLayer(PermissionTable table, ConfigurationSection section) {
+        if (section == null) {
+            return PermissionLayer.EMPTY;
+        }
+        LinkedHashMap<String, Boolean> values = new LinkedHashMap<String, Boolean>();
+        for (String key : section.getKeys(false)) {
+            if (section.isBoolean(key)) {
+                values.put(key, section.getBoolean(key));
+            }
+        }
+        return PermissionLayer.of(table, values);
+    }
+
+    /**
+     * Schedules a write of a loaded user. Must be called from the main thread.
+     */
+    void markDirty(UUID uuid) {
+        dirty.add(uuid);
+        peeked.remove(uuid);
+        int delay = plugin.getConfig().getInt("save-delay", 20);
+        if (delay <= 0 || !plugin.isEnabled()) {
+            flush();
+            return;
+        }
+        if (pending == null) {
+            pending = plugin.getServer().getScheduler().runTaskLater(plugin, new Runnable() {
+                public void run() {
+                    pending = null;
+                    flush();
+                }
+            }, delay);
+        }
+    }
+
+    void flush() {
+        if (pending != null) {
+            pending.cancel();
+            pending = null;
+        }
+        if (dirty.isEmpty()) {
+            return;
+        }
+        LinkedHashMap<UUID, ConfigurationSection> batch = new LinkedHashMap<UUID, ConfigurationSection>();
+        for (UUID uuid : dirty) {
+            batch.put(uuid, copy(uuid));
+        }
+        dirty.clear();
+        write(batch);
+    }
+
+    /**
+     * Writes everything that is left and waits for the writer to finish.
+     */
+    void close() {
+        flush();
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().severe("Timed out writing users, some changes may be lost");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        storage.close();
+    }
+
+    /**
+     * @return a copy of the user's section that is safe to hand to the writer thread, or
+     * null if the user was removed from the tree
+     */
+    private ConfigurationSection copy(UUID uuid) {
+        ConfigurationSection section = plugin.getNode("users/" + uuid);
+        if (section == null) {
+            return null;
+        }
+        YamlConfiguration copy = new YamlConfiguration();
+        copy.options().pathSeparator('/');
+        PermissionsPlugin.copySection(section, copy);
+        return copy;
+    }
+
+    private void write(final Map<UUID, ConfigurationSection> batch) {
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    storage.save(batch);
+                } catch (IOException ex) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to save " + batch.size() + " users to " + storage.describe(), ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves every UUID-keyed user found in a freshly loaded configuration to the storage
+     * and removes it from the configuration. Users still keyed by name stay where they are
+     * until they are migrated to a UUID on join. The first time anything is moved, the
+     * original config.yml is kept as config_users_backup.yml.
+     *
+     * @return the sections of the users moved
+     */
+    Map<UUID, ConfigurationSection> migrate(ConfigurationSection root, File configFile) {
+        ConfigurationSection users = root.getConfigurationSection("users");
+        if (users == null) {
+            return Collections.emptyMap();
+        }
+
+        final LinkedHashMap<UUID, ConfigurationSection> batch = new LinkedHashMap<UUID, ConfigurationSection>();
+        LinkedHashMap<UUID, String> keys = new LinkedHashMap<UUID, String>();
+        for (String key : users.getKeys(false)) {
+            UUID uuid = PermissionsModel.parseUUID(key);
+            if (uuid != null && users.isConfigurationSection(key)) {
+                batch.put(uuid, users.getConfigurationSection(key));
+                keys.put(uuid, key);
+            }
+        }
+        if (batch.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        File backup = new File(configFile.getParentFile(), "config_users_backup.yml");
+        if (!backup.exists() && !FileUtil.copy(configFile, backup)) {
+            plugin.getLogger().severe("Failed to back up " + configFile + ", not moving users out of it");
+            return Collections.emptyMap();
+        }
+        // queued behind earlier writes, so an older batch cannot overwrite these users
+        try {
+            writer.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    storage.save(batch);
+                    return null;
+                }
+            }).get();
+        } catch (ExecutionException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to move users to " + storage.describe() + ", keeping them in " + configFile.getName(), ex.getCause());
+            return Collections.emptyMap();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyMap();
+        }
+
+        for (String key : keys.values()) {
+            users.set(key, null);
+        }
+        if (users.getKeys(false).isEmpty()) {
+            root.set("users", null);
+        }
+        for (UUID uuid : batch.keySet()) {
+            peeked.remove(uuid);
+        }
+        return batch;
+    }
+
+    /**
+     * Waits until every batch handed to the writer is stored. Must be called from the
+     * main thread.
+     */
+    void await() {
+        try {
+            writer.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException ex) {
+            // the empty task cannot fail
+            throw new IllegalStateException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Puts every loaded user back into a freshly loaded configuration. Users are taken
+     * from what was just moved out of config.yml, then from the previous configuration,
+     * and only read from the storage if neither has them, so that a reload does not read
+     * every online player on the main thread. Changes must have been flushed while the
+     * previous configuration was still in place.
+     *
+     * @param moved what {@link #migrate} moved out of the fresh configuration
+     */
+    void fill(ConfigurationSection root, ConfigurationSection previous, Map<UUID, ConfigurationSection> moved) {
+        boolean written = false;
+        for (UUID uuid : loaded) {
+            ConfigurationSection data = moved.get(uuid);
+            if (data == null && previous != null) {
+                data = previous.getConfigurationSection("users/" + uuid);
+            }
+            if (data == null) {
+                if (!written) {
+                    // the storage may still be behind the flushed changes
+                    await();
+                    written = true;
+                }
+                data = read(uuid);
+            }
+            if (data != null) {
+                PermissionsPlugin.copySection(data, root.createSection("users/" + uuid));
+            }
+        }
+    }
+
+}
\ No newline at end of file
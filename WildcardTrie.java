@@ -0,0 +1,95 @@
+package me.bursty.ranks.main;
+
+/**
+ * Character trie over the wildcard nodes ({@code foo.*}, or {@code *} for everything)
+ * a player has set, so that wildcards are matched when a permission is checked instead
+ * of being expanded into every node they cover.
+ *
+ * <p>Precedence: an exact node beats any wildcard, and a longer wildcard beats a
+ * shorter one, so {@code foo.bar.*} overrides {@code foo.*} for {@code foo.bar.baz}.
+ * A wildcard never covers its own prefix: {@code foo.*} does not match {@code foo}.
+ * Matching allocates nothing.
+ */
+final class WildcardTrie {
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] next = new Node[0];
+        private Boolean value;
+
+        private Node child(char c) {
+            for (int i = 0; i < keys.length; ++i) {
+                if (keys[i] == c) {
+                    return next[i];
+                }
+            }
+            return null;
+        }
+
+        private Node addChild(char c) {
+            Node node = child(c);
+            if (node == null) {
+                int n = keys.length;
+                char[] newKeys = new char[n + 1];
+                Node[] newNext = new Node[n + 1];
+                System.arraycopy(keys, 0, newKeys, 0, n);
+                System.arraycopy(next, 0, newNext, 0, n);
+                newKeys[n] = c;
+                newNext[n] = node = new Node();
+                keys = newKeys;
+                next = newNext;
+            }
+            return node;
+        }
+    }
+
+    private final Node root = new Node();
+    private int size = 0;
+
+    static boolean isWildcard(String node) {
+        return node.equals("*") || node.endsWith(".*");
+    }
+
+    /**
+     * @param node a wildcard node, see {@link #isWildcard(String)}
+     */
+    void put(String node, boolean value) {
+        Node current = root;
+        // keep the trailing dot so that only whole segments match
+        for (int i = 0; i < node.length() - 1; ++i) {
+            current = current.addChild(Character.toLowerCase(node.charAt(i)));
+        }
+        if (current.value == null) {
+            ++size;
+        }
+        current.value = value;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the value of the longest wildcard covering the node, or null if none does
+     */
+    Boolean match(String node) {
+        Node current = root;
+        Boolean best = node.isEmpty() ? null : root.value;
+        for (int i = 0; i < node.length() - 1; ++i) {
+            char c = Character.toLowerCase(node.charAt(i));
+            current = current.child(c);
+            if (current == null) {
+                break;
+            }
+            if (c == '.' && current.value != null) {
+                best = current.value;
+            }
+        }
+        return best;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,90 @@
+package me.bursty.ranks.main;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Every user in a small YAML file of their own under a directory, sharded by the first
+ * two characters of the UUID. Files are replaced atomically.
+ */
+final class YamlUserStorage implements UserStorage {
+
+    private final File directory;
+
+    YamlUserStorage(File directory) {
+        this.directory = directory;
+    }
+
+    private File fileFor(UUID uuid) {
+        String name = uuid.toString();
+        return new File(new File(directory, name.substring(0, 2)), name + ".yml");
+    }
+
+    public YamlConfiguration load(UUID uuid) throws IOException {
+        File file = fileFor(uuid);
+        if (!file.isFile()) {
+            return null;
+        }
+        YamlConfiguration data = new YamlConfiguration();
+        data.options().pathSeparator('/');
+        try {
+            data.load(file);
+        } catch (InvalidConfigurationException ex) {
+            throw new IOException("Invalid user file " + file, ex);
+        }
+        return data;
+    }
+
+    public void save(Map<UUID, ConfigurationSection> users) throws IOException {
+        for (Map.Entry<UUID, ConfigurationSection> entry : users.entrySet()) {
+            File file = fileFor(entry.getKey());
+            if (entry.getValue() == null) {
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Failed to delete " + file);
+                }
+                continue;
+            }
+
+            YamlConfiguration data = new YamlConfiguration();
+            data.options().pathSeparator('/');
+            PermissionsPlugin.copySection(entry.getValue(), data);
+            write(file, data.saveToString());
+        }
+    }
+
+    private static void write(File file, String data) throws IOException {
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public String describe() {
+        return directory.getPath();
+    }
+
+    public void close() {
+    }
+
+}
\ No newline at end of file